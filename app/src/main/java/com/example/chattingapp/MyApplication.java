@@ -1,6 +1,15 @@
 package com.example.chattingapp;
 
 import android.app.Application;
+import com.example.chattingapp.repository.ConversationManager;
+import com.example.chattingapp.repository.MessageOutbox;
+import com.example.chattingapp.repository.MessageStore;
+import com.example.chattingapp.repository.UploadManager;
+import com.example.chattingapp.services.RealtimeManager;
+import com.example.chattingapp.services.SupabaseService;
+import com.example.chattingapp.utils.AudioDurationResolver;
+import com.example.chattingapp.utils.AvatarProvider;
+import com.example.chattingapp.utils.BitmapPool;
 import com.example.chattingapp.utils.NetworkHelper;
 
 public class MyApplication extends Application {
@@ -12,5 +21,36 @@ public class MyApplication extends Application {
         
         // Initialize Network Helper for auto-reconnect
         NetworkHelper.getInstance().init(this);
+
+        // Persistent cache for audio durations probed from remote files
+        AudioDurationResolver.getInstance().init(this);
+
+        // Local copy of chat history so the chat opens without waiting on the network
+        MessageStore.init(this);
+
+        // Sends anything queued while offline or before the app was killed
+        SupabaseService.INSTANCE.init();
+        MessageOutbox.init();
+
+        // Media uploads interrupted by a dropped connection or a killed process pick up where they stopped
+        UploadManager.init(this);
+
+        // Lazily opened, LRU-bounded realtime subscriptions for rooms and direct messages
+        ConversationManager.init(this);
+
+        // One realtime socket for the whole app, skip the reconnect backoff when the network returns
+        NetworkHelper.getInstance().addNetworkCallback(isConnected -> {
+            if (isConnected) RealtimeManager.INSTANCE.reconnectNow();
+        });
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // Pooled bitmaps and rendered avatars only save work, give them back when the system asks
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            BitmapPool.getInstance().clear();
+            AvatarProvider.getInstance().clear();
+        }
     }
 }
@@ -1,43 +1,355 @@
 package com.example.chattingapp.adapter;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.SeekBar;
-import android.os.Handler;
-import android.os.Looper;
 import java.util.Locale;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 import com.bumptech.glide.Glide;
 import com.example.chattingapp.R;
 import com.example.chattingapp.model.Message;
+import com.example.chattingapp.model.MessageWindow;
+import com.example.chattingapp.utils.AudioDurationResolver;
+import com.example.chattingapp.utils.AudioPlaybackEngine;
+import com.example.chattingapp.utils.AvatarDrawable;
+import com.example.chattingapp.utils.PlaybackProgressTicker;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
 
     private static final int VIEW_TYPE_SENT = 1;
     private static final int VIEW_TYPE_RECEIVED = 2;
 
-    private List<Message> messages = new ArrayList<>();
+    // Payload flags for partial rebinds (only the changed views are touched)
+    static final int PAYLOAD_TEXT = 1;
+    static final int PAYLOAD_SENDER = 1 << 1;
+    static final int PAYLOAD_MEDIA = 1 << 2;
+    static final int PAYLOAD_STATUS = 1 << 3;
+
+    public interface OnRetryListener {
+        void onRetry(Message message);
+    }
+
+    private OnRetryListener retryListener;
+
+    /**
+     * Compares two window snapshots row by row, straight from the columns
+     */
+    private static final class WindowDiff extends DiffUtil.Callback {
+        private final MessageWindow oldWindow;
+        private final MessageWindow newWindow;
+
+        WindowDiff(MessageWindow oldWindow, MessageWindow newWindow) {
+            this.oldWindow = oldWindow;
+            this.newWindow = newWindow;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return oldWindow.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return newWindow.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldPosition, int newPosition) {
+            String oldId = oldWindow.getId(oldPosition);
+            return oldId != null && oldId.equals(newWindow.getId(newPosition));
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldPosition, int newPosition) {
+            return changedParts(oldWindow, oldPosition, newWindow, newPosition) == 0;
+        }
+
+        @Nullable
+        @Override
+        public Object getChangePayload(int oldPosition, int newPosition) {
+            // A sent/received flip needs a different view type, so do a full rebind
+            if (oldWindow.isSentByMe(oldPosition) != newWindow.isSentByMe(newPosition)) return null;
+            return changedParts(oldWindow, oldPosition, newWindow, newPosition);
+        }
+    }
+
+    private static int changedParts(MessageWindow a, int i, MessageWindow b, int j) {
+        int parts = 0;
+        if (!Objects.equals(a.getMessage(i), b.getMessage(j))) {
+            parts |= PAYLOAD_TEXT;
+        }
+        // Both snapshots share one sender table, so equal refs mean equal name and avatar
+        if (a.getSenderRef(i) != b.getSenderRef(j)) {
+            parts |= PAYLOAD_SENDER;
+        }
+        if (a.getType(i) != b.getType(j)
+                || !Objects.equals(a.getFileUrl(i), b.getFileUrl(j))
+                || a.getDuration(i) != b.getDuration(j)) {
+            parts |= PAYLOAD_MEDIA;
+        }
+        if (a.getStatus(i) != b.getStatus(j)) {
+            parts |= PAYLOAD_STATUS;
+        }
+        if (a.isSentByMe(i) != b.isSentByMe(j)) {
+            parts |= PAYLOAD_TEXT | PAYLOAD_SENDER | PAYLOAD_MEDIA;
+        }
+        return parts;
+    }
+
+    // Diffs are computed here, one at a time, only the minimal updates are dispatched
+    private static final Executor diffExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // What the RecyclerView currently shows
+    private MessageWindow window = MessageWindow.empty();
+    // Last snapshot submitted; edits build on it so a pending diff is never lost
+    private MessageWindow latest = window;
+    // Bumped on every submit, a diff that finishes after a newer submit is dropped
+    private int generation = 0;
+
+    // Flyweight used for every bind, moved to the row being bound
+    private final MessageWindow.Row cursor = new MessageWindow.Row();
+
+    private void submit(MessageWindow updated, @Nullable Runnable onCommitted) {
+        final int runGeneration = ++generation;
+        latest = updated;
+        final MessageWindow shown = window;
+
+        // Nothing to diff against: just swap, like AsyncListDiffer does
+        if (shown.isEmpty() || updated.isEmpty()) {
+            window = updated;
+            if (!shown.isEmpty()) notifyItemRangeRemoved(0, shown.size());
+            if (!updated.isEmpty()) notifyItemRangeInserted(0, updated.size());
+            if (onCommitted != null) onCommitted.run();
+            return;
+        }
+
+        diffExecutor.execute(() -> {
+            DiffUtil.DiffResult result = DiffUtil.calculateDiff(new WindowDiff(shown, updated), false);
+            mainHandler.post(() -> {
+                if (runGeneration != generation) return;
+                window = updated;
+                result.dispatchUpdatesTo(this);
+                if (onCommitted != null) onCommitted.run();
+            });
+        });
+    }
+
+    public void setOnRetryListener(OnRetryListener listener) {
+        this.retryListener = listener;
+    }
 
     public void setMessages(List<Message> messages) {
-        this.messages = messages;
-        notifyDataSetChanged();
+        setMessages(messages, null);
+    }
+
+    /**
+     * Submits a new list, onCommitted runs on the main thread once the diff has been applied
+     */
+    public void setMessages(List<Message> messages, @Nullable Runnable onCommitted) {
+        submit(latest.newBuilder(messages.size()).addAll(messages).build(), onCommitted);
+    }
+
+    /**
+     * Latest snapshot, e.g. to keep it around while the screen is closed
+     */
+    public MessageWindow getWindow() {
+        return latest;
+    }
+
+    /**
+     * Shows a snapshot taken earlier with {@link #getWindow}; later updates keep using its sender table
+     */
+    public void restoreWindow(MessageWindow saved, @Nullable Runnable onCommitted) {
+        submit(saved, onCommitted);
     }
 
     public void addMessage(Message message) {
-        this.messages.add(message);
-        notifyItemInserted(messages.size() - 1);
+        addMessage(message, null);
+    }
+
+    public void addMessage(Message message, @Nullable Runnable onCommitted) {
+        addMessages(Collections.singletonList(message), onCommitted);
+    }
+
+    /**
+     * Appends a batch of new messages with a single list update (one range insert)
+     */
+    public void addMessages(List<Message> newMessages, @Nullable Runnable onCommitted) {
+        upsertMessages(newMessages, onCommitted);
+    }
+
+    /**
+     * Replaces messages whose id is already shown (e.g. the echo of an optimistic send) in place
+     * and appends the rest, all in one list update
+     */
+    public void upsertMessages(List<Message> incoming, @Nullable Runnable onCommitted) {
+        if (isPlainAppend(incoming)) {
+            append(incoming, onCommitted);
+            return;
+        }
+        MessageWindow.Builder builder = latest.newBuilder(latest.size() + incoming.size())
+                .addRange(latest, 0, latest.size());
+        // Ids appended by this batch, in case it repeats one
+        Map<String, Integer> appended = new HashMap<>();
+        for (Message message : incoming) {
+            String id = message.getId();
+            int position = latest.indexOf(id);
+            if (position < 0 && id != null) {
+                Integer added = appended.get(id);
+                if (added != null) position = added;
+            }
+            if (position >= 0) {
+                builder.set(position, message);
+            } else {
+                if (id != null) appended.put(id, builder.size());
+                builder.add(message);
+            }
+        }
+        submit(builder.build(), onCommitted);
+    }
+
+    /**
+     * True for the usual realtime batch: only new ids, none older than the last row
+     */
+    private boolean isPlainAppend(List<Message> incoming) {
+        if (incoming.isEmpty()) return false;
+        long tail = latest.isEmpty() ? Long.MIN_VALUE : latest.getTimestamp(latest.size() - 1);
+        Set<String> batchIds = incoming.size() > 1 ? new HashSet<>() : null;
+        for (Message message : incoming) {
+            String id = message.getId();
+            if (id == null || message.getTimestamp() < tail || latest.indexOf(id) >= 0) return false;
+            if (batchIds != null && !batchIds.add(id)) return false;
+            tail = message.getTimestamp();
+        }
+        return true;
+    }
+
+    /**
+     * Adds rows at the end without a diff: the window grows in place and the RecyclerView just
+     * gets a range insert. Falls back to a diff while another one is pending, so that one isn't lost.
+     */
+    private void append(List<Message> incoming, @Nullable Runnable onCommitted) {
+        MessageWindow updated = latest.append(incoming);
+        if (window != latest) {
+            submit(updated, onCommitted);
+            return;
+        }
+        generation++;
+        int from = window.size();
+        latest = updated;
+        window = updated;
+        notifyItemRangeInserted(from, incoming.size());
+        if (onCommitted != null) onCommitted.run();
+    }
+
+    /**
+     * Applies server-side edits and deletes in one list update. Only messages already shown are
+     * touched; edited rows are replaced in place, so the diff sends a payload for just what changed.
+     */
+    public void updateMessages(List<Message> updated, List<String> deletedIds, @Nullable Runnable onCommitted) {
+        MessageWindow.Builder replaced = null;
+        for (Message message : updated) {
+            int position = latest.indexOf(message.getId());
+            if (position < 0) continue;
+            if (replaced == null) {
+                replaced = latest.newBuilder(latest.size()).addRange(latest, 0, latest.size());
+            }
+            replaced.set(position, message);
+        }
+        MessageWindow current = replaced != null ? replaced.build() : latest;
+
+        boolean[] removed = null;
+        int removedCount = 0;
+        for (String id : deletedIds) {
+            int position = current.indexOf(id);
+            if (position < 0) continue;
+            if (removed == null) removed = new boolean[current.size()];
+            if (!removed[position]) {
+                removed[position] = true;
+                removedCount++;
+            }
+        }
+        if (removed != null) {
+            // Copy the surviving runs column by column
+            MessageWindow.Builder kept = current.newBuilder(current.size() - removedCount);
+            int runStart = 0;
+            for (int i = 0; i <= current.size(); i++) {
+                if (i == current.size() || removed[i]) {
+                    if (i > runStart) kept.addRange(current, runStart, i);
+                    runStart = i + 1;
+                }
+            }
+            current = kept.build();
+        }
+
+        if (current == latest) {
+            if (onCommitted != null) onCommitted.run();
+            return;
+        }
+        submit(current, onCommitted);
+    }
+
+    /**
+     * Changes the delivery status of the message with id, returns false if it isn't shown
+     */
+    public boolean updateStatus(String id, int status) {
+        int position = latest.indexOf(id);
+        if (position < 0) return false;
+        if (latest.getStatus(position) == status) return true;
+        // Only the status column is copied; the old snapshot keeps its state, so the diff emits a status payload
+        submit(latest.withStatus(position, status), null);
+        return true;
+    }
+
+    /**
+     * Messages from this device that the server hasn't confirmed yet (pending or failed)
+     */
+    public List<Message> getUnsentMessages() {
+        List<Message> unsent = new ArrayList<>();
+        for (int i = 0; i < latest.size(); i++) {
+            if (latest.getStatus(i) != Message.STATUS_SENT) unsent.add(latest.toMessage(i));
+        }
+        return unsent;
+    }
+
+    @Nullable
+    public Message findById(String id) {
+        int position = latest.indexOf(id);
+        return position >= 0 ? latest.toMessage(position) : null;
+    }
+
+    /**
+     * Inserts a page of older history above the current messages
+     */
+    public void prependMessages(List<Message> older, @Nullable Runnable onCommitted) {
+        submit(latest.newBuilder(older.size() + latest.size())
+                .addAll(older)
+                .addRange(latest, 0, latest.size())
+                .build(), onCommitted);
     }
 
     @Override
     public int getItemViewType(int position) {
-        Message message = messages.get(position);
-        return message.isSentByMe() ? VIEW_TYPE_SENT : VIEW_TYPE_RECEIVED;
+        return window.isSentByMe(position) ? VIEW_TYPE_SENT : VIEW_TYPE_RECEIVED;
     }
 
     @NonNull
@@ -54,9 +366,39 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         }
     }
 
+    @Override
+    public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+
+        int parts = 0;
+        for (Object payload : payloads) {
+            if (payload instanceof Integer) parts |= (Integer) payload;
+        }
+
+        MessageWindow.Row message = cursor.moveTo(window, position);
+        // Media changes go through the full bind (Glide, audio state)
+        if ((parts & PAYLOAD_MEDIA) != 0) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+
+        if (holder.getItemViewType() == VIEW_TYPE_SENT) {
+            SentMessageHolder sent = (SentMessageHolder) holder;
+            if ((parts & PAYLOAD_TEXT) != 0) sent.bindText(message);
+            if ((parts & PAYLOAD_STATUS) != 0) sent.bindStatus(message);
+        } else {
+            ReceivedMessageHolder received = (ReceivedMessageHolder) holder;
+            if ((parts & PAYLOAD_SENDER) != 0) received.bindSender(message);
+            if ((parts & PAYLOAD_TEXT) != 0) received.bindText(message);
+        }
+    }
+
     @Override
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position) {
-        Message message = messages.get(position);
+        MessageWindow.Row message = cursor.moveTo(window, position);
 
         if (holder.getItemViewType() == VIEW_TYPE_SENT) {
             ((SentMessageHolder) holder).bind(message);
@@ -65,151 +407,186 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         }
     }
 
-    // Static media player
-    private static android.media.MediaPlayer mediaPlayer;
-    private static String currentPlayingUrl = "";
-    private static Handler audioHandler = new Handler(Looper.getMainLooper());
-    private static Runnable audioRunnable;
+    // Playback lives in the app-wide engine, the adapter only mirrors its state
+    private final AudioPlaybackEngine playbackEngine = AudioPlaybackEngine.getInstance();
+    private final PlaybackProgressTicker progressTicker = new PlaybackProgressTicker(playbackEngine);
     
     // UI references for current playing item
     private SeekBar currentSeekBar;
     private TextView currentTimer;
     private ImageView currentPlayBtn;
 
-    private void formatTime(TextView textView, int current, int total) {
-        String currStr = String.format(Locale.getDefault(), "%02d:%02d", current / 60000, (current % 60000) / 1000);
-        String totalStr = String.format(Locale.getDefault(), "%02d:%02d", total / 60000, (total % 60000) / 1000);
-        textView.setText(currStr + " / " + totalStr);
-    }
-
-    public void releaseAudio() {
-        if (mediaPlayer != null) {
-             try {
-                if (mediaPlayer.isPlaying()) {
-                    mediaPlayer.stop();
-                }
-             } catch(Exception e) {}
-             mediaPlayer.release();
-             mediaPlayer = null;
-        }
-        if (audioRunnable != null) {
-            audioHandler.removeCallbacks(audioRunnable);
+    private final AudioPlaybackEngine.Listener playbackListener = (url, state) -> {
+        if (state == AudioPlaybackEngine.STATE_IDLE) {
+            if (currentPlayBtn != null) currentPlayBtn.setImageResource(android.R.drawable.ic_media_play);
+            if (currentSeekBar != null) currentSeekBar.setProgress(0);
+            clearCurrentViews();
+            return;
         }
         if (currentPlayBtn != null) {
-            currentPlayBtn.setImageResource(android.R.drawable.ic_media_play);
+            currentPlayBtn.setImageResource(state == AudioPlaybackEngine.STATE_PLAYING
+                    ? android.R.drawable.ic_media_pause : android.R.drawable.ic_media_play);
         }
-        currentPlayingUrl = "";
+        if (state == AudioPlaybackEngine.STATE_PLAYING) {
+            if (currentSeekBar != null) currentSeekBar.setMax(playbackEngine.getDuration());
+            progressTicker.update();
+        } else {
+            progressTicker.stop();
+            if (state == AudioPlaybackEngine.STATE_PAUSED && currentSeekBar != null) {
+                currentSeekBar.setProgress(playbackEngine.getCurrentPosition());
+            }
+        }
+    };
+
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onAttachedToRecyclerView(recyclerView);
+        playbackEngine.addListener(playbackListener);
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        // Playback keeps going, we just drop every view reference
+        playbackEngine.removeListener(playbackListener);
+        clearCurrentViews();
+    }
+
+    @Override
+    public void onViewAttachedToWindow(@NonNull RecyclerView.ViewHolder holder) {
+        super.onViewAttachedToWindow(holder);
+        // The playing row may have just scrolled back into view
+        progressTicker.update();
+    }
+
+    /**
+     * Stops playback and frees the players, use when leaving the app
+     */
+    public void releaseAudio() {
+        playbackEngine.release();
+        clearCurrentViews();
+    }
+
+    private void clearCurrentViews() {
         currentSeekBar = null;
         currentTimer = null;
         currentPlayBtn = null;
+        progressTicker.detach();
     }
 
-    private static boolean isSeeking = false;
+    private void setCurrentViews(SeekBar seekBar, TextView timer, ImageView playBtn) {
+        currentSeekBar = seekBar;
+        currentTimer = timer;
+        currentPlayBtn = playBtn;
+        progressTicker.attach(seekBar, timer);
+    }
 
-    private void playAudio(String url, SeekBar seekBar, TextView timerText, ImageView playBtn) {
-        // If clicking same audio which is playing, pause/stop
-        if (url.equals(currentPlayingUrl) && mediaPlayer != null) {
-            if (mediaPlayer.isPlaying()) {
-                mediaPlayer.pause();
-                playBtn.setImageResource(android.R.drawable.ic_media_play);
-            } else {
-                mediaPlayer.start();
+    /**
+     * Shared audio row binding: mirrors engine state and wires the controls
+     */
+    private void bindAudioControls(RecyclerView.ViewHolder holder, MessageWindow.Row message,
+                                   ImageView playBtn, SeekBar seekBar, TextView timer) {
+        String url = message.getFileUrl();
+
+        // Drop stale references if this holder was showing the playing clip before being recycled
+        if (currentPlayBtn == playBtn && !playbackEngine.isCurrent(url)) {
+            clearCurrentViews();
+        }
+
+        if (playbackEngine.isCurrent(url)) {
+            // Re-link current references to this bound view holder (handling recycling)
+            setCurrentViews(seekBar, timer, playBtn);
+            if (playbackEngine.isPlaying()) {
                 playBtn.setImageResource(android.R.drawable.ic_media_pause);
-                updateSeekBar();
             }
-            return;
+            int duration = playbackEngine.getDuration();
+            if (duration > 0) {
+                seekBar.setMax(duration);
+                seekBar.setProgress(playbackEngine.getCurrentPosition());
+            }
         }
 
-        // New audio
-        releaseAudio();
-        
-        currentSeekBar = seekBar;
-        currentTimer = timerText;
-        currentPlayBtn = playBtn;
-        currentPlayingUrl = url;
-
-        // Setup SeekBar listener for user seeking
         seekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-                if (fromUser && mediaPlayer != null) {
-                    formatTime(timerText, progress, mediaPlayer.getDuration());
+                if (fromUser && playbackEngine.isCurrent(url)) {
+                    progressTicker.showTime(timer, progress, playbackEngine.getDuration());
                 }
             }
 
             @Override
             public void onStartTrackingTouch(SeekBar seekBar) {
-                isSeeking = true;
+                if (playbackEngine.isCurrent(url)) progressTicker.setSeeking(true);
             }
 
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
-                if (mediaPlayer != null) {
-                    mediaPlayer.seekTo(seekBar.getProgress());
+                if (playbackEngine.isCurrent(url)) {
+                    playbackEngine.seekTo(seekBar.getProgress());
                 }
-                isSeeking = false;
+                progressTicker.setSeeking(false);
             }
         });
 
-        try {
-            mediaPlayer = new android.media.MediaPlayer();
-            mediaPlayer.setDataSource(url);
-            mediaPlayer.prepareAsync();
-            mediaPlayer.setOnPreparedListener(mp -> {
-                mp.start();
-                playBtn.setImageResource(android.R.drawable.ic_media_pause);
-                if (currentSeekBar != null) {
-                    currentSeekBar.setMax(mp.getDuration());
-                }
-                updateSeekBar();
-            });
-            mediaPlayer.setOnErrorListener((mp, what, extra) -> {
-                // Handle error, reset UI
-                playBtn.setImageResource(android.R.drawable.ic_media_play);
-                if (currentSeekBar != null) currentSeekBar.setProgress(0);
-                if (currentTimer != null) currentTimer.setText("00:00");
-                releaseAudio();
-                return true; // Error handled
-            });
-            mediaPlayer.setOnCompletionListener(mp -> {
-                playBtn.setImageResource(android.R.drawable.ic_media_play);
+        playBtn.setOnClickListener(v -> {
+            if (url == null) return;
+            if (!playbackEngine.isCurrent(url) && currentPlayBtn != null) {
+                currentPlayBtn.setImageResource(android.R.drawable.ic_media_play);
                 if (currentSeekBar != null) currentSeekBar.setProgress(0);
-                // Keep the socket open or release? Let's release to save resources
-                // releaseAudio(); // Or just reset UI
-            });
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+            }
+            setCurrentViews(seekBar, timer, playBtn);
+            playbackEngine.toggle(url);
+            preloadNextAudio(holder.getBindingAdapterPosition());
+        });
     }
 
-    private void updateSeekBar() {
-        if (mediaPlayer == null || !mediaPlayer.isPlaying()) return;
-        
-        audioRunnable = new Runnable() {
-            @Override
-            public void run() {
-                if (mediaPlayer != null && mediaPlayer.isPlaying()) {
-                    if (!isSeeking) {
-                        int currentPosition = mediaPlayer.getCurrentPosition();
-                        int totalDuration = mediaPlayer.getDuration();
-                        
-                        if (currentSeekBar != null) {
-                            currentSeekBar.setProgress(currentPosition);
-                        }
-                        if (currentTimer != null) {
-                            formatTime(currentTimer, currentPosition, totalDuration);
-                        }
-                    }
-                    audioHandler.postDelayed(this, 100);
-                }
+    /**
+     * Prepares the next audio clip below position so tapping it starts without buffering
+     */
+    private void preloadNextAudio(int position) {
+        if (position == RecyclerView.NO_POSITION) return;
+        for (int i = position + 1; i < window.size(); i++) {
+            if (window.getType(i) == Message.TYPE_AUDIO && window.getFileUrl(i) != null) {
+                playbackEngine.preload(window.getFileUrl(i));
+                return;
             }
-        };
-        audioHandler.post(audioRunnable);
+        }
+    }
+
+    /**
+     * Shows the total duration, resolving it in the background when the message doesn't carry one.
+     * Returns the pending request (or null) so the holder can cancel it on recycle.
+     */
+    private AudioDurationResolver.Request bindDuration(MessageWindow.Row message, TextView timer) {
+        if (message.getDuration() > 0) {
+            setDurationText(timer, message.getDuration());
+            return null;
+        }
+        timer.setText("00:00");
+        if (message.getFileUrl() == null) return null;
+        return AudioDurationResolver.getInstance().resolve(message.getFileUrl(),
+                durationMs -> setDurationText(timer, durationMs));
+    }
+
+    private void setDurationText(TextView timer, long durationMs) {
+        long durationSec = durationMs / 1000;
+        String totalStr = String.format(Locale.getDefault(), "%02d:%02d", durationSec / 60, durationSec % 60);
+        timer.setText("00:00 / " + totalStr);
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull RecyclerView.ViewHolder holder) {
+        super.onViewRecycled(holder);
+        if (holder instanceof SentMessageHolder) {
+            ((SentMessageHolder) holder).cancelDurationRequest();
+        } else if (holder instanceof ReceivedMessageHolder) {
+            ((ReceivedMessageHolder) holder).cancelDurationRequest();
+        }
     }
 
     @Override
     public int getItemCount() {
-        return messages.size();
+        return window.size();
     }
     
     // ... getItemCount
@@ -221,6 +598,8 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         ImageView btnPlayAudio;
         SeekBar audioSeekBar;
         TextView audioTimer;
+        TextView statusText;
+        AudioDurationResolver.Request durationRequest;
 
         SentMessageHolder(View itemView) {
             super(itemView);
@@ -230,62 +609,66 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
             btnPlayAudio = itemView.findViewById(R.id.btn_play_audio);
             audioSeekBar = itemView.findViewById(R.id.audio_seekbar);
             audioTimer = itemView.findViewById(R.id.audio_timer);
+            statusText = itemView.findViewById(R.id.text_message_status);
         }
 
-        void bind(Message message) {
+        void bindStatus(MessageWindow.Row message) {
+            int status = message.getStatus();
+            itemView.setAlpha(status == Message.STATUS_PENDING ? 0.6f : 1f);
+            if (status == Message.STATUS_SENT) {
+                statusText.setVisibility(View.GONE);
+                statusText.setOnClickListener(null);
+                statusText.setClickable(false);
+                return;
+            }
+            statusText.setVisibility(View.VISIBLE);
+            if (status == Message.STATUS_FAILED) {
+                statusText.setText(R.string.msg_status_failed);
+                // The row is a flyweight, look the message up again on click
+                String id = message.getId();
+                statusText.setOnClickListener(v -> {
+                    Message failed = findById(id);
+                    if (retryListener != null && failed != null) retryListener.onRetry(failed);
+                });
+            } else {
+                statusText.setText(R.string.msg_status_sending);
+                statusText.setOnClickListener(null);
+                statusText.setClickable(false);
+            }
+        }
+
+        void cancelDurationRequest() {
+            if (durationRequest != null) {
+                durationRequest.cancel();
+                durationRequest = null;
+            }
+        }
+
+        void bindText(MessageWindow.Row message) {
+            if (textBody.getVisibility() == View.VISIBLE) {
+                textBody.setText(message.getMessage());
+            }
+        }
+
+        void bind(MessageWindow.Row message) {
+            cancelDurationRequest();
+            bindStatus(message);
             textBody.setVisibility(View.GONE);
             imageBody.setVisibility(View.GONE);
             audioLayout.setVisibility(View.GONE);
 
-            if ("image".equals(message.getType())) {
+            if (message.getType() == Message.TYPE_IMAGE) {
                 imageBody.setVisibility(View.VISIBLE);
                 Glide.with(itemView.getContext()).load(message.getFileUrl()).into(imageBody);
-            } else if ("audio".equals(message.getType())) {
+            } else if (message.getType() == Message.TYPE_AUDIO) {
                 audioLayout.setVisibility(View.VISIBLE);
                 // Reset UI state
                 btnPlayAudio.setImageResource(android.R.drawable.ic_media_play);
                 audioSeekBar.setProgress(0);
                 
-                if (message.getDuration() > 0) {
-                     long durationSec = message.getDuration() / 1000;
-                     String totalStr = String.format(Locale.getDefault(), "%02d:%02d", durationSec / 60, durationSec % 60);
-                     audioTimer.setText("00:00 / " + totalStr);
-                } else {
-                    audioTimer.setText("00:00");
-                    // Fetch duration from URL asynchronously
-                    if (message.getFileUrl() != null) {
-                        final TextView timer = audioTimer;
-                        new Thread(() -> {
-                            try {
-                                android.media.MediaMetadataRetriever retriever = new android.media.MediaMetadataRetriever();
-                                retriever.setDataSource(message.getFileUrl(), new java.util.HashMap<>());
-                                String time = retriever.extractMetadata(android.media.MediaMetadataRetriever.METADATA_KEY_DURATION);
-                                retriever.release();
-                                if (time != null) {
-                                    long durationMs = Long.parseLong(time);
-                                    long durationSec = durationMs / 1000;
-                                    String totalStr = String.format(Locale.getDefault(), "%02d:%02d", durationSec / 60, durationSec % 60);
-                                    timer.post(() -> timer.setText("00:00 / " + totalStr));
-                                }
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                            }
-                        }).start();
-                    }
-                }
+                durationRequest = bindDuration(message, audioTimer);
                 
-                // If this specific message is currently playing, update UI to match state
-                if (message.getFileUrl() != null && message.getFileUrl().equals(currentPlayingUrl)) {
-                     if (mediaPlayer != null && mediaPlayer.isPlaying()) {
-                         btnPlayAudio.setImageResource(android.R.drawable.ic_media_pause);
-                         // Re-link current references to this bound view holder (handling recycling)
-                         currentSeekBar = audioSeekBar;
-                         currentTimer = audioTimer;
-                         currentPlayBtn = btnPlayAudio;
-                     }
-                }
-
-                btnPlayAudio.setOnClickListener(v -> playAudio(message.getFileUrl(), audioSeekBar, audioTimer, btnPlayAudio));
+                bindAudioControls(this, message, btnPlayAudio, audioSeekBar, audioTimer);
             } else {
                 textBody.setVisibility(View.VISIBLE);
                 textBody.setText(message.getMessage());
@@ -301,6 +684,8 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         ImageView btnPlayAudio;
         SeekBar audioSeekBar;
         TextView audioTimer;
+        AudioDurationResolver.Request durationRequest;
+        final AvatarDrawable avatarDrawable = new AvatarDrawable(null);
 
         ReceivedMessageHolder(View itemView) {
             super(itemView);
@@ -313,7 +698,20 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
             audioTimer = itemView.findViewById(R.id.audio_timer);
         }
 
-        void bind(Message message) {
+        void cancelDurationRequest() {
+            if (durationRequest != null) {
+                durationRequest.cancel();
+                durationRequest = null;
+            }
+        }
+
+        void bindText(MessageWindow.Row message) {
+            if (textBody.getVisibility() == View.VISIBLE) {
+                textBody.setText(message.getMessage());
+            }
+        }
+
+        void bindSender(MessageWindow.Row message) {
              // Bind Sender Name
             TextView senderName = itemView.findViewById(R.id.text_sender_name);
             if (senderName != null) {
@@ -325,73 +723,44 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
                 }
             }
 
-            // Bind Avatar
+            // Bind Avatar (one reusable drawable per holder, pixels come from the shared cache)
             if (avatar != null) {
                 String avatarUrl = message.getSenderAvatarUrl();
-                String name = message.getSenderName();
+                avatarDrawable.setText(message.getSenderName());
                 
                 if (avatarUrl != null && !avatarUrl.isEmpty()) {
                     Glide.with(itemView.getContext())
                         .load(avatarUrl)
-                        .placeholder(new com.example.chattingapp.utils.AvatarDrawable(name))
-                        .error(new com.example.chattingapp.utils.AvatarDrawable(name))
+                        .placeholder(avatarDrawable)
+                        .error(avatarDrawable)
                         .into(avatar);
                 } else {
-                    avatar.setImageDrawable(new com.example.chattingapp.utils.AvatarDrawable(name));
+                    Glide.with(itemView.getContext()).clear(avatar);
+                    avatar.setImageDrawable(avatarDrawable);
                 }
             }
+        }
+
+        void bind(MessageWindow.Row message) {
+            cancelDurationRequest();
+            bindSender(message);
 
             textBody.setVisibility(View.GONE);
             imageBody.setVisibility(View.GONE);
             audioLayout.setVisibility(View.GONE);
 
-            if ("image".equals(message.getType())) {
+            if (message.getType() == Message.TYPE_IMAGE) {
                 imageBody.setVisibility(View.VISIBLE);
                 Glide.with(itemView.getContext()).load(message.getFileUrl()).into(imageBody);
-            } else if ("audio".equals(message.getType())) {
+            } else if (message.getType() == Message.TYPE_AUDIO) {
                 audioLayout.setVisibility(View.VISIBLE);
                 // Reset UI
                 btnPlayAudio.setImageResource(android.R.drawable.ic_media_play);
                 audioSeekBar.setProgress(0);
                 
-                if (message.getDuration() > 0) {
-                     long durationSec = message.getDuration() / 1000;
-                     String totalStr = String.format(Locale.getDefault(), "%02d:%02d", durationSec / 60, durationSec % 60);
-                     audioTimer.setText("00:00 / " + totalStr);
-                } else {
-                    audioTimer.setText("00:00");
-                    // Fetch duration from URL asynchronously
-                    if (message.getFileUrl() != null) {
-                        final TextView timer = audioTimer;
-                        new Thread(() -> {
-                            try {
-                                android.media.MediaMetadataRetriever retriever = new android.media.MediaMetadataRetriever();
-                                retriever.setDataSource(message.getFileUrl(), new java.util.HashMap<>());
-                                String time = retriever.extractMetadata(android.media.MediaMetadataRetriever.METADATA_KEY_DURATION);
-                                retriever.release();
-                                if (time != null) {
-                                    long durationMs = Long.parseLong(time);
-                                    long durationSec = durationMs / 1000;
-                                    String totalStr = String.format(Locale.getDefault(), "%02d:%02d", durationSec / 60, durationSec % 60);
-                                    timer.post(() -> timer.setText("00:00 / " + totalStr));
-                                }
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                            }
-                        }).start();
-                    }
-                }
-                
-                if (message.getFileUrl() != null && message.getFileUrl().equals(currentPlayingUrl)) {
-                     if (mediaPlayer != null && mediaPlayer.isPlaying()) {
-                         btnPlayAudio.setImageResource(android.R.drawable.ic_media_pause);
-                         currentSeekBar = audioSeekBar;
-                         currentTimer = audioTimer;
-                         currentPlayBtn = btnPlayAudio;
-                     }
-                }
+                durationRequest = bindDuration(message, audioTimer);
                 
-                btnPlayAudio.setOnClickListener(v -> playAudio(message.getFileUrl(), audioSeekBar, audioTimer, btnPlayAudio));
+                bindAudioControls(this, message, btnPlayAudio, audioSeekBar, audioTimer);
             } else {
                 textBody.setVisibility(View.VISIBLE);
                 textBody.setText(message.getMessage());
@@ -0,0 +1,87 @@
+package com.example.chattingapp.model;
+
+/**
+ * A place messages are posted to: the global chat, a named room or a 1:1 conversation.
+ * Global messages live in their own table; rooms and direct messages share
+ * conversation_messages, told apart by conversation_id.
+ */
+public class Conversation {
+
+    public static final int KIND_GLOBAL = 0;
+    public static final int KIND_ROOM = 1;
+    public static final int KIND_DIRECT = 2;
+
+    public static final String GLOBAL_ID = "global";
+
+    public static final String TABLE_GLOBAL = "global_messages";
+    public static final String TABLE_CONVERSATIONS = "conversation_messages";
+
+    private static final Conversation GLOBAL = new Conversation(GLOBAL_ID, KIND_GLOBAL, null, null);
+
+    private final String id;
+    private final int kind;
+    private final String title;
+    private final String peerId; // other participant of a direct conversation
+
+    private Conversation(String id, int kind, String title, String peerId) {
+        this.id = id;
+        this.kind = kind;
+        this.title = title;
+        this.peerId = peerId;
+    }
+
+    public static Conversation global() {
+        return GLOBAL;
+    }
+
+    public static Conversation room(String roomId, String title) {
+        return new Conversation("room:" + roomId, KIND_ROOM, title, null);
+    }
+
+    /**
+     * Both participants get the same id, whoever opens the conversation first
+     */
+    public static Conversation direct(String myUserId, String peerId, String title) {
+        String id = myUserId.compareTo(peerId) < 0
+                ? "dm:" + myUserId + ":" + peerId
+                : "dm:" + peerId + ":" + myUserId;
+        return new Conversation(id, KIND_DIRECT, title, peerId);
+    }
+
+    public String getId() { return id; }
+    public int getKind() { return kind; }
+    public String getTitle() { return title; }
+    public String getPeerId() { return peerId; }
+
+    public boolean isGlobal() {
+        return kind == KIND_GLOBAL;
+    }
+
+    public String getTable() {
+        return isGlobal() ? TABLE_GLOBAL : TABLE_CONVERSATIONS;
+    }
+
+    /**
+     * Value for the conversation_id column, null for the global chat (its table has no such column)
+     */
+    public String getRemoteId() {
+        return isGlobal() ? null : id;
+    }
+
+    /**
+     * Table a message with this conversation_id goes to
+     */
+    public static String tableFor(String remoteId) {
+        return remoteId == null ? TABLE_GLOBAL : TABLE_CONVERSATIONS;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Conversation && ((Conversation) o).id.equals(id);
+    }
+
+    @Override
+    public int hashCode() {
+        return id.hashCode();
+    }
+}
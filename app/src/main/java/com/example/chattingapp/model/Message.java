@@ -1,19 +1,29 @@
 package com.example.chattingapp.model;
 
-import java.util.Date;
-
 public class Message {
+    // Delivery state of messages sent from this device
+    public static final int STATUS_SENT = 0;
+    public static final int STATUS_PENDING = 1;
+    public static final int STATUS_FAILED = 2;
+
+    // Content type, stored as a code so binding compares ints instead of strings
+    public static final int TYPE_TEXT = 0;
+    public static final int TYPE_IMAGE = 1;
+    public static final int TYPE_AUDIO = 2;
+
     private String id;
     private String senderId;
     private String senderName; // For global chat - show who sent it
     private String senderAvatarUrl;
-    private String receiverId;
+    private String conversationId; // "room:..." or "dm:..." (see Conversation), null for the global chat
     private String message;
-    private String type; // text, image, audio
+    private int type = TYPE_TEXT;
     private String fileUrl;
     private long duration;
-    private Date timestamp;
+    private long timestamp; // created_at, epoch millis
+    private String createdAt; // created_at as the server sent it, used for paging cursors
     private boolean isSentByMe; // Helper field
+    private int status = STATUS_SENT;
 
     // Getters and Setters
     public String getId() { return id; }
@@ -28,24 +38,71 @@ public class Message {
     public String getSenderAvatarUrl() { return senderAvatarUrl; }
     public void setSenderAvatarUrl(String senderAvatarUrl) { this.senderAvatarUrl = senderAvatarUrl; }
 
-    public String getReceiverId() { return receiverId; }
-    public void setReceiverId(String receiverId) { this.receiverId = receiverId; }
+    public String getConversationId() { return conversationId; }
+    public void setConversationId(String conversationId) { this.conversationId = conversationId; }
 
     public String getMessage() { return message; }
     public void setMessage(String message) { this.message = message; }
 
-    public String getType() { return type; }
-    public void setType(String type) { this.type = type; }
+    public int getType() { return type; }
+    public void setType(int type) { this.type = type; }
+
+    /**
+     * Code for the type column value ("text", "image", "audio"), unknown types show as text
+     */
+    public static int typeOf(String name) {
+        if ("image".equals(name)) return TYPE_IMAGE;
+        if ("audio".equals(name)) return TYPE_AUDIO;
+        return TYPE_TEXT;
+    }
+
+    /**
+     * Type column value for a code
+     */
+    public static String typeName(int type) {
+        switch (type) {
+            case TYPE_IMAGE: return "image";
+            case TYPE_AUDIO: return "audio";
+            default: return "text";
+        }
+    }
 
     public String getFileUrl() { return fileUrl; }
     public void setFileUrl(String fileUrl) { this.fileUrl = fileUrl; }
 
-    public Date getTimestamp() { return timestamp; }
-    public void setTimestamp(Date timestamp) { this.timestamp = timestamp; }
+    public long getTimestamp() { return timestamp; }
+    public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
+
+    public String getCreatedAt() { return createdAt; }
+    public void setCreatedAt(String createdAt) { this.createdAt = createdAt; }
 
     public boolean isSentByMe() { return isSentByMe; }
     public void setSentByMe(boolean sentByMe) { isSentByMe = sentByMe; }
 
+    public int getStatus() { return status; }
+    public void setStatus(int status) { this.status = status; }
+
     public long getDuration() { return duration; }
     public void setDuration(long duration) { this.duration = duration; }
+
+    /**
+     * Shallow copy, used when a shown message changes so list diffing still sees the old state
+     */
+    public Message copy() {
+        Message m = new Message();
+        m.id = id;
+        m.senderId = senderId;
+        m.senderName = senderName;
+        m.senderAvatarUrl = senderAvatarUrl;
+        m.conversationId = conversationId;
+        m.message = message;
+        m.type = type;
+        m.fileUrl = fileUrl;
+        m.duration = duration;
+        m.timestamp = timestamp;
+        m.createdAt = createdAt;
+        m.isSentByMe = isSentByMe;
+        m.status = status;
+        return m;
+    }
 }
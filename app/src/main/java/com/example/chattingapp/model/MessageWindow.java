@@ -0,0 +1,337 @@
+package com.example.chattingapp.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Compact, column-oriented snapshot of the messages shown in a chat.
+ * Each field is one array indexed by position: timestamps and durations are primitive longs,
+ * type and status are byte codes and the sender is an int into a shared {@link Senders} table,
+ * so a row costs a few array slots instead of a full {@link Message} object.
+ * Snapshots are immutable once built (unchanged columns are shared between versions), which
+ * makes them safe to diff on a background thread. Read rows through a {@link Row} cursor.
+ * Appending new rows ({@link #append}) writes into spare capacity of the shared columns when it
+ * can: older snapshots never look past their own size, so they don't see the new rows.
+ */
+public final class MessageWindow {
+
+    private static final byte FLAG_SENT_BY_ME = 1;
+
+    private final Senders senders;
+    private final int size;
+    private final String[] ids;
+    private final String[] texts;
+    private final String[] fileUrls;
+    // Raw created_at and conversation: only read back by toMessage (retries, unsent rows)
+    private final String[] createdAts;
+    private final String[] conversationIds;
+    private final long[] timestamps;
+    private final long[] durations;
+    private final int[] senderRefs;
+    private final byte[] types;
+    private final byte[] statuses;
+    private final byte[] flags;
+    // Rows written into these columns by any snapshot sharing them; only the snapshot that ends
+    // there may append in place
+    private final int[] used;
+
+    // Lazily built open-addressing id -> position table (main thread only). Shared with the
+    // snapshots appended to this one, so it can hold positions past this snapshot's size
+    private int[] idIndex;
+
+    private MessageWindow(Senders senders, int capacity) {
+        this.senders = senders;
+        this.size = 0;
+        ids = new String[capacity];
+        texts = new String[capacity];
+        fileUrls = new String[capacity];
+        createdAts = new String[capacity];
+        conversationIds = new String[capacity];
+        timestamps = new long[capacity];
+        durations = new long[capacity];
+        senderRefs = new int[capacity];
+        types = new byte[capacity];
+        statuses = new byte[capacity];
+        flags = new byte[capacity];
+        used = new int[1];
+    }
+
+    private MessageWindow(MessageWindow base, int size, byte[] statuses) {
+        senders = base.senders;
+        this.size = size;
+        ids = base.ids;
+        texts = base.texts;
+        fileUrls = base.fileUrls;
+        createdAts = base.createdAts;
+        conversationIds = base.conversationIds;
+        timestamps = base.timestamps;
+        durations = base.durations;
+        senderRefs = base.senderRefs;
+        types = base.types;
+        this.statuses = statuses;
+        flags = base.flags;
+        used = base.used;
+    }
+
+    /**
+     * An empty window with its own sender table, use one per chat
+     */
+    public static MessageWindow empty() {
+        return new MessageWindow(new Senders(), 0);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public String getId(int position) { return ids[position]; }
+    public String getMessage(int position) { return texts[position]; }
+    public String getFileUrl(int position) { return fileUrls[position]; }
+    public long getTimestamp(int position) { return timestamps[position]; }
+    public long getDuration(int position) { return durations[position]; }
+    public int getType(int position) { return types[position]; }
+    public int getStatus(int position) { return statuses[position]; }
+    public boolean isSentByMe(int position) { return (flags[position] & FLAG_SENT_BY_ME) != 0; }
+
+    /**
+     * Index into the sender table, equal refs mean the same id, name and avatar
+     */
+    public int getSenderRef(int position) { return senderRefs[position]; }
+
+    public String getSenderId(int position) { return senders.ids.get(senderRefs[position]); }
+    public String getSenderName(int position) { return senders.names.get(senderRefs[position]); }
+    public String getSenderAvatarUrl(int position) { return senders.avatarUrls.get(senderRefs[position]); }
+
+    /**
+     * Position of the message with id, -1 if it isn't in the window
+     */
+    public int indexOf(String id) {
+        if (id == null || size == 0) return -1;
+        if (idIndex == null) idIndex = buildIdIndex();
+        int mask = idIndex.length - 1;
+        for (int slot = spread(id.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+            int entry = idIndex[slot];
+            if (entry == 0) return -1;
+            if (entry <= size && id.equals(ids[entry - 1])) return entry - 1;
+        }
+    }
+
+    private int[] buildIdIndex() {
+        // Power of two, at most half full; entries are position + 1 so 0 means empty
+        int capacity = Integer.highestOneBit(Math.max(2, size * 2 - 1)) << 1;
+        int[] table = new int[capacity];
+        for (int i = 0; i < size; i++) index(table, i);
+        return table;
+    }
+
+    private void index(int[] table, int position) {
+        if (ids[position] == null) return;
+        int mask = table.length - 1;
+        int slot = spread(ids[position].hashCode()) & mask;
+        while (table[slot] != 0) slot = (slot + 1) & mask;
+        table[slot] = position + 1;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Same window with one status changed; every other column is shared, not copied
+     */
+    public MessageWindow withStatus(int position, int status) {
+        byte[] updated = statuses.clone();
+        updated[position] = (byte) status;
+        MessageWindow window = new MessageWindow(this, size, updated);
+        window.idIndex = idIndex;
+        return window;
+    }
+
+    /**
+     * Same window with messages added at the end. When this is the newest snapshot of its columns
+     * and they have room, the rows are written in place and the id index is extended, so the cost
+     * is the added rows only; otherwise the columns are copied once with spare capacity (half again
+     * the size), which the following appends then use.
+     */
+    public MessageWindow append(List<Message> messages) {
+        int count = messages.size();
+        if (count == 0) return this;
+        if (used[0] != size || size + count > ids.length) {
+            return new Builder(senders, size + count + Math.max(16, (size + count) >> 1))
+                    .addRange(this, 0, size)
+                    .addAll(messages)
+                    .build();
+        }
+        for (int i = 0; i < count; i++) Builder.write(this, size + i, messages.get(i));
+        int newSize = size + count;
+        used[0] = newSize;
+        MessageWindow window = new MessageWindow(this, newSize, statuses);
+        // Keep the table while it stays at most half full, else the next lookup rebuilds it bigger
+        if (idIndex != null && newSize * 2 <= idIndex.length) {
+            for (int i = size; i < newSize; i++) index(idIndex, i);
+            window.idIndex = idIndex;
+        }
+        return window;
+    }
+
+    /**
+     * Turns a row back into a full Message, for the few places that need one (retry, unsent rows)
+     */
+    public Message toMessage(int position) {
+        Message m = new Message();
+        m.setId(ids[position]);
+        m.setSenderId(getSenderId(position));
+        m.setSenderName(getSenderName(position));
+        m.setSenderAvatarUrl(getSenderAvatarUrl(position));
+        m.setMessage(texts[position]);
+        m.setType(types[position]);
+        m.setFileUrl(fileUrls[position]);
+        m.setCreatedAt(createdAts[position]);
+        m.setConversationId(conversationIds[position]);
+        m.setDuration(durations[position]);
+        m.setTimestamp(timestamps[position]);
+        m.setSentByMe(isSentByMe(position));
+        m.setStatus(statuses[position]);
+        return m;
+    }
+
+    public Builder newBuilder(int capacity) {
+        return new Builder(senders, capacity);
+    }
+
+    /**
+     * Flyweight view of one row. Keep one per binder and {@link #moveTo} it, don't hold on to
+     * it past the bind (capture the values you need instead).
+     */
+    public static final class Row {
+        private MessageWindow window;
+        private int position;
+
+        public Row moveTo(MessageWindow window, int position) {
+            this.window = window;
+            this.position = position;
+            return this;
+        }
+
+        public int getPosition() { return position; }
+        public String getId() { return window.getId(position); }
+        public String getMessage() { return window.getMessage(position); }
+        public String getFileUrl() { return window.getFileUrl(position); }
+        public long getTimestamp() { return window.getTimestamp(position); }
+        public long getDuration() { return window.getDuration(position); }
+        public int getType() { return window.getType(position); }
+        public int getStatus() { return window.getStatus(position); }
+        public boolean isSentByMe() { return window.isSentByMe(position); }
+        public String getSenderId() { return window.getSenderId(position); }
+        public String getSenderName() { return window.getSenderName(position); }
+        public String getSenderAvatarUrl() { return window.getSenderAvatarUrl(position); }
+    }
+
+    /**
+     * Distinct (sender id, name, avatar) triples, shared by every snapshot of one chat.
+     * Append-only; written and read on the main thread (diffing only compares the refs).
+     */
+    public static final class Senders {
+        final List<String> ids = new ArrayList<>();
+        final List<String> names = new ArrayList<>();
+        final List<String> avatarUrls = new ArrayList<>();
+        // Sender id -> latest ref; a renamed sender gets a new ref, older rows keep the old one
+        private final Map<String, Integer> refs = new HashMap<>();
+
+        int refOf(String id, String name, String avatarUrl) {
+            Integer ref = refs.get(id);
+            if (ref != null && Objects.equals(names.get(ref), name) && Objects.equals(avatarUrls.get(ref), avatarUrl)) {
+                return ref;
+            }
+            ref = ids.size();
+            ids.add(id);
+            names.add(name);
+            avatarUrls.add(avatarUrl);
+            refs.put(id, ref);
+            return ref;
+        }
+    }
+
+    /**
+     * Builds a new snapshot row by row. Build on the main thread (it may add senders).
+     */
+    public static final class Builder {
+        private final MessageWindow target;
+        private int size;
+
+        private Builder(Senders senders, int capacity) {
+            target = new MessageWindow(senders, capacity);
+        }
+
+        public Builder add(Message m) {
+            write(target, size++, m);
+            return this;
+        }
+
+        static void write(MessageWindow target, int i, Message m) {
+            target.ids[i] = m.getId();
+            target.texts[i] = m.getMessage();
+            target.fileUrls[i] = m.getFileUrl();
+            target.createdAts[i] = m.getCreatedAt();
+            target.conversationIds[i] = m.getConversationId();
+            target.timestamps[i] = m.getTimestamp();
+            target.durations[i] = m.getDuration();
+            target.senderRefs[i] = target.senders.refOf(m.getSenderId(), m.getSenderName(), m.getSenderAvatarUrl());
+            target.types[i] = (byte) m.getType();
+            target.statuses[i] = (byte) m.getStatus();
+            target.flags[i] = m.isSentByMe() ? FLAG_SENT_BY_ME : 0;
+        }
+
+        public Builder addAll(List<Message> messages) {
+            for (Message m : messages) add(m);
+            return this;
+        }
+
+        /**
+         * Copies rows [from, to) of source, column by column
+         */
+        public Builder addRange(MessageWindow source, int from, int to) {
+            int count = to - from;
+            System.arraycopy(source.ids, from, target.ids, size, count);
+            System.arraycopy(source.texts, from, target.texts, size, count);
+            System.arraycopy(source.fileUrls, from, target.fileUrls, size, count);
+            System.arraycopy(source.createdAts, from, target.createdAts, size, count);
+            System.arraycopy(source.conversationIds, from, target.conversationIds, size, count);
+            System.arraycopy(source.timestamps, from, target.timestamps, size, count);
+            System.arraycopy(source.durations, from, target.durations, size, count);
+            System.arraycopy(source.senderRefs, from, target.senderRefs, size, count);
+            System.arraycopy(source.types, from, target.types, size, count);
+            System.arraycopy(source.statuses, from, target.statuses, size, count);
+            System.arraycopy(source.flags, from, target.flags, size, count);
+            size += count;
+            return this;
+        }
+
+        /**
+         * Overwrites an already added row
+         */
+        public Builder set(int position, Message m) {
+            int end = size;
+            size = position;
+            add(m);
+            size = end;
+            return this;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public MessageWindow build() {
+            target.used[0] = size;
+            return new MessageWindow(target, size, target.statuses);
+        }
+    }
+}
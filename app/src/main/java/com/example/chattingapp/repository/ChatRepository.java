@@ -2,122 +2,619 @@ package com.example.chattingapp.repository;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
 
+import com.example.chattingapp.model.Conversation;
 import com.example.chattingapp.model.Message;
 import com.example.chattingapp.services.MessageDto;
+import com.example.chattingapp.services.RealtimeManager;
 import com.example.chattingapp.services.SupabaseService;
+import com.example.chattingapp.utils.MessageIds;
+import com.example.chattingapp.utils.StringInterner;
+import com.example.chattingapp.utils.TimestampParser;
 
-import java.text.SimpleDateFormat;
+import kotlinx.coroutines.Job;
+
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class ChatRepository {
 
+    private static final String TAG = "ChatRepository";
+
+    // Disk reads and writes for the local message store, shared by all repository instances
+    private static final ExecutorService diskExecutor = Executors.newSingleThreadExecutor();
+
     public interface ChatCallback {
         void onMessagesReceived(List<Message> messages);
-        void onNewMessage(Message message);
+        void onOlderMessagesReceived(List<Message> messages, boolean hasMore);
+        void onNewMessages(List<Message> messages);
+        // Rows edited or deleted on the server; only the ones currently shown need applying
+        void onMessagesChanged(List<Message> updated, List<String> deletedIds);
+        void onMessagesSent(List<Message> messages);
+        void onMessagesFailed(List<String> messageIds, String error);
         void onError(String error);
     }
 
+    private final Conversation conversation;
     private ChatCallback callback;
     private Handler mainHandler = new Handler(Looper.getMainLooper());
     private boolean isSubscribed = false;
 
+    // Keyset cursor: created_at + id of the oldest loaded message
+    private String oldestCreatedAt;
+    private String oldestId;
+    private volatile boolean isLoadingOlder = false;
+    private volatile boolean hasMoreHistory = true;
+    // Main thread only: while the latest page streams in, older pages wait (they would overlap it)
+    private boolean latestPageInFlight = false;
+
+    // Main thread only: once the network page is shown, a late cache read must not replace it
+    private boolean networkPageShown = false;
+    private boolean cachePageShown = false;
+
+    // Rows per chunk posted while a history page streams in, about a screenful
+    private static final int STREAM_CHUNK_SIZE = 20;
+
+    // Gap fill after reconnect is capped, past this a fresh latest page is cheaper
+    private static final int MAX_GAP_PAGES = 10;
+
+    // High-water mark: created_at + id of the newest message seen (main thread only).
+    // Compared by the parsed time, the string is only sent back to the server as the cursor
+    private String newestCreatedAt;
+    private long newestMillis = TimestampParser.INVALID;
+    private String newestId;
+    private boolean gapFillInProgress = false;
+    // Realtime batches that arrive while the gap is being filled, delivered after the fill
+    private List<Message> bufferedRealtime = new ArrayList<>();
+
+    // History requests in flight, cancelled on release so they don't outlive the screen
+    private Job latestPageJob;
+    private Job olderPageJob;
+
+    public ChatRepository() {
+        this(Conversation.global());
+    }
+
+    public ChatRepository(Conversation conversation) {
+        this.conversation = conversation;
+    }
+
+    public Conversation getConversation() {
+        return conversation;
+    }
+
     public void init(ChatCallback callback) {
         this.callback = callback;
         SupabaseService.INSTANCE.init();
+        MessageOutbox outbox = MessageOutbox.getInstance();
+        if (outbox != null) outbox.addListener(outboxListener);
     }
 
-    public void loadGlobalMessages() {
-        SupabaseService.INSTANCE.fetchGlobalMessages(new SupabaseService.MessageCallback() {
-            @Override
-            public void onMessagesReceived(List<MessageDto> messageDtos) {
-                List<Message> messages = new ArrayList<>();
-                for (MessageDto dto : messageDtos) {
-                    messages.add(mapToDomain(dto));
-                }
-                
+    /**
+     * Stops delivering results, call when the owner goes away
+     */
+    public void release() {
+        callback = null;
+        cancel(latestPageJob);
+        cancel(olderPageJob);
+        latestPageJob = null;
+        olderPageJob = null;
+        latestPageInFlight = false;
+        Log.d(TAG, SupabaseService.INSTANCE.laneStats());
+        MessageOutbox outbox = MessageOutbox.getInstance();
+        if (outbox != null) outbox.removeListener(outboxListener);
+        if (isSubscribed) {
+            RealtimeManager.INSTANCE.removeMessageListener(conversation.getTable(), conversation.getRemoteId(), realtimeListener);
+            RealtimeManager.INSTANCE.removeConnectionListener(connectionListener);
+            isSubscribed = false;
+        }
+    }
+
+    /**
+     * Shows the newest page of history from the local store right away, then replaces it with
+     * the network page (written through to the store) once it arrives.
+     * With nothing cached, the network page is shown chunk by chunk while it downloads.
+     */
+    public void loadMessages() {
+        final long startedAt = SystemClock.elapsedRealtime();
+        networkPageShown = false;
+        cachePageShown = false;
+
+        MessageStore store = MessageStore.getInstance();
+        if (store != null) {
+            diskExecutor.execute(() -> {
+                List<Message> messages = mapAll(store.loadLatest(conversation.getId(), SupabaseService.PAGE_SIZE));
+                List<Message> queued = loadQueued();
+                if (messages.isEmpty() && queued.isEmpty()) return;
+                List<Message> cursorPage = new ArrayList<>(messages);
+                messages.addAll(queued);
                 mainHandler.post(() -> {
-                   if (callback != null) callback.onMessagesReceived(messages);
+                    if (networkPageShown || callback == null) return;
+                    cachePageShown = true;
+                    updateCursor(cursorPage);
+                    hasMoreHistory = true;
+                    Log.d(TAG, "Time to first message (cache): " + (SystemClock.elapsedRealtime() - startedAt) + "ms");
+                    callback.onMessagesReceived(messages);
                 });
+            });
+        }
+
+        cancel(latestPageJob);
+        latestPageInFlight = true;
+        latestPageJob = SupabaseService.INSTANCE.streamMessagesBefore(conversation.getTable(), conversation.getRemoteId(), null, null, SupabaseService.PAGE_SIZE, new HistoryPageStream(SupabaseService.PAGE_SIZE) {
+            // Rows held back while the cached page is on screen, swapped in once the page is complete
+            private final List<Message> held = new ArrayList<>();
+            // The cursor only moves once the page is complete, see loadOlderMessages
+            private List<Message> oldestChunk;
+
+            @Override
+            void onChunk(List<Message> chunk) {
+                oldestChunk = chunk;
+                advanceHighWaterMark(chunk);
+                if (cachePageShown) {
+                    held.addAll(0, chunk);
+                } else if (!networkPageShown) {
+                    networkPageShown = true;
+                    Log.d(TAG, "Time to first message (network): " + (SystemClock.elapsedRealtime() - startedAt) + "ms");
+                    if (callback != null) callback.onMessagesReceived(chunk);
+                } else if (callback != null) {
+                    callback.onOlderMessagesReceived(chunk, true);
+                }
             }
 
             @Override
-            public void onError(String error) {
-                mainHandler.post(() -> {
-                   if (callback != null) callback.onError(error);
-                });
+            void onComplete(boolean hasMore) {
+                latestPageInFlight = false;
+                hasMoreHistory = hasMore;
+                if (oldestChunk != null) updateCursor(oldestChunk);
+                if (networkPageShown) return;
+                networkPageShown = true;
+                if (callback != null) callback.onMessagesReceived(new ArrayList<>(held));
             }
 
             @Override
-            public void onNewMessage(MessageDto message) {
-                // Not used in fetch
+            void onFailed(String error, boolean partial) {
+                // Part of the page is better than the cached page or nothing, unless the cache is showing
+                if (partial && !cachePageShown) {
+                    onComplete(true);
+                    return;
+                }
+                // The cached page (and its cursor) stays, older pages continue from it
+                latestPageInFlight = false;
+                if (callback != null) callback.onError(error);
             }
         });
     }
 
+    /**
+     * Loads the page right before the oldest loaded message.
+     * Comes from the network (written through to the store), or from the store when offline.
+     * Ignored while a page is already in flight (the latest page included) or when history is
+     * exhausted. Main thread only.
+     */
+    public void loadOlderMessages() {
+        if (latestPageInFlight || isLoadingOlder || !hasMoreHistory || oldestCreatedAt == null || oldestId == null) return;
+        isLoadingOlder = true;
+        final String cursorCreatedAt = oldestCreatedAt;
+        final String cursorId = oldestId;
+
+        olderPageJob = SupabaseService.INSTANCE.streamMessagesBefore(conversation.getTable(), conversation.getRemoteId(), cursorCreatedAt, cursorId, SupabaseService.PAGE_SIZE, new HistoryPageStream(SupabaseService.PAGE_SIZE) {
+            // The newest chunk waits for the next one, so the last chunk can carry the real hasMore
+            private List<Message> held;
+
+            @Override
+            void onChunk(List<Message> chunk) {
+                updateCursor(chunk);
+                if (held != null && callback != null) callback.onOlderMessagesReceived(held, true);
+                held = chunk;
+            }
+
+            @Override
+            void onComplete(boolean hasMore) {
+                hasMoreHistory = hasMore;
+                isLoadingOlder = false;
+                if (callback != null) {
+                    callback.onOlderMessagesReceived(held != null ? held : new ArrayList<>(), hasMore);
+                }
+                held = null;
+            }
+
+            @Override
+            void onFailed(String error, boolean partial) {
+                if (partial) {
+                    // Keep what arrived, the next scroll continues from it
+                    onComplete(true);
+                    return;
+                }
+                MessageStore store = MessageStore.getInstance();
+                if (store == null) {
+                    isLoadingOlder = false;
+                    if (callback != null) callback.onError(error);
+                    return;
+                }
+                // Offline: fall back to whatever history is on disk
+                diskExecutor.execute(() ->
+                        deliverOlderPage(mapAll(store.loadBefore(conversation.getId(), cursorCreatedAt, cursorId, SupabaseService.PAGE_SIZE))));
+            }
+        });
+    }
+
+    private static void cancel(Job job) {
+        if (job != null) job.cancel(null);
+    }
+
+    private void deliverOlderPage(List<Message> messages) {
+        boolean hasMore = messages.size() >= SupabaseService.PAGE_SIZE;
+        mainHandler.post(() -> {
+            updateCursor(messages);
+            hasMoreHistory = hasMore;
+            isLoadingOlder = false;
+            if (callback != null) callback.onOlderMessagesReceived(messages, hasMore);
+        });
+    }
+
+    /**
+     * One streamed history page. Rows are decoded into Messages as the body downloads and posted
+     * to the main thread in chunks: each chunk is ordered oldest -> newest and is older than the
+     * one before it. The whole page is written through once it is read.
+     * The abstract methods run on the main thread.
+     */
+    private abstract class HistoryPageStream implements SupabaseService.BodyCallback {
+        private final int limit;
+        private final long startedAt = SystemClock.elapsedRealtime();
+        // Decoding thread only
+        private final List<Message> page = new ArrayList<>();
+
+        HistoryPageStream(int limit) {
+            this.limit = limit;
+        }
+
+        abstract void onChunk(List<Message> chunk);
+
+        abstract void onComplete(boolean hasMore);
+
+        abstract void onFailed(String error, boolean partial);
+
+        @Override
+        public void onBody(InputStream body) throws IOException {
+            int rows = MessageStreamDecoder.decode(body, STREAM_CHUNK_SIZE, chunk -> {
+                if (page.isEmpty()) {
+                    Log.d(TAG, "Time to first row: " + (SystemClock.elapsedRealtime() - startedAt) + "ms");
+                }
+                page.addAll(chunk);
+                Collections.reverse(chunk);
+                mainHandler.post(() -> onChunk(chunk));
+            });
+            Log.d(TAG, "Streamed " + rows + " rows in " + (SystemClock.elapsedRealtime() - startedAt) + "ms");
+            writeThrough(page);
+            boolean hasMore = rows >= limit;
+            mainHandler.post(() -> onComplete(hasMore));
+        }
+
+        @Override
+        public void onError(String error) {
+            boolean partial = !page.isEmpty();
+            writeThrough(page);
+            mainHandler.post(() -> onFailed(error, partial));
+        }
+    }
+
+    private void writeThrough(List<Message> messages) {
+        MessageStore store = MessageStore.getInstance();
+        if (store == null || messages.isEmpty()) return;
+        List<Message> copy = new ArrayList<>(messages);
+        diskExecutor.execute(() -> store.upsert(copy));
+    }
+
+    public boolean hasMoreHistory() {
+        return hasMoreHistory;
+    }
+
+    // Main thread only
+    private void updateCursor(List<Message> page) {
+        // Pages are ordered oldest -> newest, so the first row is the new cursor
+        if (page.isEmpty()) return;
+        Message oldest = page.get(0);
+        oldestCreatedAt = oldest.getCreatedAt();
+        oldestId = oldest.getId();
+    }
+
+    private List<Message> mapAll(List<MessageDto> messageDtos) {
+        List<Message> messages = new ArrayList<>(messageDtos.size());
+        for (MessageDto dto : messageDtos) {
+            messages.add(mapToDomain(dto));
+        }
+        return messages;
+    }
+
+    /**
+     * Starts receiving inserts through the app-wide realtime channel. Call once per repository;
+     * the channel itself is shared with any other listener and outlives this repository.
+     */
     public void subscribeToRealtime() {
         if (isSubscribed) return;
         isSubscribed = true;
-        
-        SupabaseService.INSTANCE.subscribeToGlobalMessages(new SupabaseService.MessageCallback() {
+        RealtimeManager.INSTANCE.addConnectionListener(connectionListener);
+        RealtimeManager.INSTANCE.addMessageListener(conversation.getTable(), conversation.getRemoteId(), realtimeListener);
+    }
+
+    private final SupabaseService.MessageBatchCallback realtimeListener = new SupabaseService.MessageBatchCallback() {
+        @Override
+        public void onNewMessages(List<MessageDto> dtos) {
+            // Already off the main thread: persist and map the whole batch, then post it once
+            List<Message> messages = mapAll(dtos);
+            writeThrough(messages);
+            mainHandler.post(() -> {
+                if (gapFillInProgress) {
+                    bufferedRealtime.addAll(messages);
+                    return;
+                }
+                advanceHighWaterMark(messages);
+                if (callback != null) callback.onNewMessages(messages);
+            });
+        }
+
+        @Override
+        public void onMessagesChanged(List<MessageDto> updatedDtos, List<String> deletedIds) {
+            List<Message> updated = mapAll(updatedDtos);
+            writeThrough(updated);
+            MessageStore store = MessageStore.getInstance();
+            if (store != null && !deletedIds.isEmpty()) {
+                List<String> ids = new ArrayList<>(deletedIds);
+                diskExecutor.execute(() -> store.delete(ids));
+            }
+            mainHandler.post(() -> {
+                if (gapFillInProgress) applyToBuffered(updated, deletedIds);
+                if (callback != null) callback.onMessagesChanged(updated, deletedIds);
+            });
+        }
+
+        @Override
+        public void onError(String error) {
+            mainHandler.post(() -> {
+                if (callback != null) callback.onError(error);
+            });
+        }
+    };
+
+    // Inserts held back during a gap fill still need later edits and deletes (main thread only)
+    private void applyToBuffered(List<Message> updated, List<String> deletedIds) {
+        if (bufferedRealtime.isEmpty()) return;
+        Map<String, Message> byId = new HashMap<>();
+        for (Message m : updated) byId.put(m.getId(), m);
+        Set<String> deleted = new HashSet<>(deletedIds);
+        List<Message> kept = new ArrayList<>(bufferedRealtime.size());
+        for (Message m : bufferedRealtime) {
+            if (deleted.contains(m.getId())) continue;
+            Message edited = byId.get(m.getId());
+            kept.add(edited != null ? edited : m);
+        }
+        bufferedRealtime = kept;
+    }
+
+    // Every (re)connect may have missed inserts, fetch them from the high-water mark
+    private final RealtimeManager.ConnectionListener connectionListener = state -> {
+        if (state == RealtimeManager.STATE_CONNECTED) mainHandler.post(this::fillGap);
+    };
+
+    /**
+     * Fetches only what was inserted after the newest message we have, page by page.
+     * Cost follows the size of the gap; a gap over MAX_GAP_PAGES falls back to reloading the latest page.
+     */
+    private void fillGap() {
+        if (gapFillInProgress || !isSubscribed || newestCreatedAt == null || newestId == null) return;
+        gapFillInProgress = true;
+        fetchGapPage(newestCreatedAt, newestId, new ArrayList<>(), 1);
+    }
+
+    private void fetchGapPage(String afterCreatedAt, String afterId, List<Message> collected, int page) {
+        SupabaseService.INSTANCE.fetchMessagesAfter(conversation.getTable(), conversation.getRemoteId(), afterCreatedAt, afterId, SupabaseService.PAGE_SIZE, new SupabaseService.MessageCallback() {
             @Override
-            public void onMessagesReceived(List<MessageDto> messages) {
-                // Not used in subscribe
+            public void onMessagesReceived(List<MessageDto> messageDtos) {
+                List<Message> messages = mapAll(messageDtos);
+                writeThrough(messages);
+                collected.addAll(messages);
+                boolean full = messages.size() >= SupabaseService.PAGE_SIZE;
+                if (full && page < MAX_GAP_PAGES) {
+                    Message last = messages.get(messages.size() - 1);
+                    fetchGapPage(last.getCreatedAt(), last.getId(), collected, page + 1);
+                    return;
+                }
+                mainHandler.post(() -> finishGapFill(collected, full));
             }
 
             @Override
             public void onError(String error) {
-                 mainHandler.post(() -> {
-                   if (callback != null) callback.onError(error);
-                });
+                // Deliver what we have, the next reconnect tries again from the high-water mark
+                mainHandler.post(() -> finishGapFill(collected, false));
             }
 
             @Override
-            public void onNewMessage(MessageDto dto) {
-                Message message = mapToDomain(dto);
-                mainHandler.post(() -> {
-                   if (callback != null) callback.onNewMessage(message);
-                });
+            public void onNewMessage(MessageDto message) {
+                // Not used in fetch
             }
         });
     }
 
-    public void sendGlobalMessage(String senderId, String senderName, String senderAvatarUrl, String text, String type, String fileUrl, long duration) {
-        SupabaseService.INSTANCE.sendGlobalMessage(senderId, senderName, senderAvatarUrl, text, type, fileUrl, duration);
+    private void finishGapFill(List<Message> gap, boolean truncated) {
+        gapFillInProgress = false;
+        List<Message> realtime = bufferedRealtime;
+        bufferedRealtime = new ArrayList<>();
+
+        if (truncated) {
+            loadMessages();
+            return;
+        }
+
+        // Realtime rows that came in during the fill are newer than the gap; drop the ones the fill already returned
+        Set<String> ids = new HashSet<>();
+        List<Message> merged = new ArrayList<>(gap.size() + realtime.size());
+        for (Message m : gap) {
+            if (m.getId() == null || ids.add(m.getId())) merged.add(m);
+        }
+        for (Message m : realtime) {
+            if (m.getId() == null || ids.add(m.getId())) merged.add(m);
+        }
+
+        advanceHighWaterMark(gap);
+        advanceHighWaterMark(realtime);
+        if (!merged.isEmpty() && callback != null) callback.onNewMessages(merged);
+    }
+
+    // Main thread only
+    private void advanceHighWaterMark(List<Message> messages) {
+        for (Message m : messages) {
+            String createdAt = m.getCreatedAt();
+            String id = m.getId();
+            if (createdAt == null || id == null) continue;
+            // Pages, realtime and sends don't all format created_at the same way (Z or +00:00, digits)
+            long millis = TimestampParser.parseEpochMillis(createdAt);
+            if (millis == TimestampParser.INVALID) continue;
+            int cmp = newestCreatedAt == null ? 1 : Long.compare(millis, newestMillis);
+            if (cmp > 0 || (cmp == 0 && id.compareTo(newestId) > 0)) {
+                newestCreatedAt = createdAt;
+                newestMillis = millis;
+                newestId = id;
+            }
+        }
+    }
+
+    /**
+     * Sends a message optimistically: returns a pending Message (client-generated id) to show right away.
+     * It goes through the outbox; the inserted row or the failure comes back through onMessagesSent / onMessagesFailed.
+     */
+    public Message sendMessage(String senderId, String senderName, String senderAvatarUrl, String text, int type, String fileUrl, long duration) {
+        Message pending = new Message();
+        pending.setId(MessageIds.next());
+        pending.setSenderId(senderId);
+        pending.setSenderName(senderName);
+        pending.setSenderAvatarUrl(senderAvatarUrl);
+        pending.setConversationId(conversation.getRemoteId());
+        pending.setMessage(text);
+        pending.setType(type);
+        pending.setFileUrl(fileUrl);
+        pending.setDuration(duration);
+        pending.setTimestamp(System.currentTimeMillis());
+        pending.setSentByMe(true);
+        pending.setStatus(Message.STATUS_PENDING);
+
+        send(pending);
+        return pending;
+    }
+
+    /**
+     * Sends a failed message again. It is still queued in the outbox under the same id,
+     * so this just skips the backoff.
+     */
+    public void retrySend(Message message) {
+        MessageOutbox outbox = MessageOutbox.getInstance();
+        if (outbox != null) {
+            outbox.drainNow();
+        } else {
+            send(message);
+        }
+    }
+
+    private void send(Message pending) {
+        MessageDto dto = new MessageDto(pending.getId(), pending.getSenderId(), pending.getSenderName(),
+                pending.getSenderAvatarUrl(), pending.getMessage(), Message.typeName(pending.getType()), pending.getFileUrl(),
+                pending.getDuration(), null, pending.getConversationId());
+
+        MessageOutbox outbox = MessageOutbox.getInstance();
+        if (outbox != null) {
+            outbox.enqueue(dto);
+            return;
+        }
+
+        // No local store (shouldn't happen outside tests): send directly, nothing survives a failure
+        SupabaseService.INSTANCE.sendMessages(conversation.getTable(), Collections.singletonList(dto), new SupabaseService.SendCallback() {
+            @Override
+            public void onSent(List<MessageDto> messages) {
+                outboxListener.onSent(messages);
+            }
+
+            @Override
+            public void onError(String error) {
+                outboxListener.onSendFailed(Collections.singletonList(dto.getId()), error);
+            }
+        });
+    }
+
+    private final MessageOutbox.Listener outboxListener = new MessageOutbox.Listener() {
+        @Override
+        public void onSent(List<MessageDto> dtos) {
+            // The outbox is shared by every conversation
+            List<Message> sent = mapAll(ownRows(dtos));
+            if (sent.isEmpty()) return;
+            writeThrough(sent);
+            mainHandler.post(() -> {
+                advanceHighWaterMark(sent);
+                if (callback != null) callback.onMessagesSent(sent);
+            });
+        }
+
+        @Override
+        public void onSendFailed(List<String> messageIds, String error) {
+            mainHandler.post(() -> {
+                if (callback != null) callback.onMessagesFailed(messageIds, error);
+            });
+        }
+    };
+
+    /**
+     * Outbox messages as pending rows, so queued sends still show after a restart
+     */
+    private List<Message> loadQueued() {
+        MessageOutbox outbox = MessageOutbox.getInstance();
+        if (outbox == null) return Collections.emptyList();
+        List<Message> queued = mapAll(ownRows(outbox.getQueued()));
+        for (Message m : queued) {
+            m.setSentByMe(true);
+            m.setStatus(Message.STATUS_PENDING);
+        }
+        return queued;
+    }
+
+    private List<MessageDto> ownRows(List<MessageDto> dtos) {
+        List<MessageDto> own = new ArrayList<>(dtos.size());
+        for (MessageDto dto : dtos) {
+            if (Objects.equals(dto.getConversation_id(), conversation.getRemoteId())) own.add(dto);
+        }
+        return own;
     }
 
     private Message mapToDomain(MessageDto dto) {
         Message m = new Message();
         m.setId(dto.getId());
-        m.setSenderId(dto.getSender_id());
-        m.setSenderName(dto.getSender_name());
-        m.setSenderAvatarUrl(dto.getSender_avatar_url());
+        // Sender fields repeat on every message from the same person, keep one copy of each
+        StringInterner interner = StringInterner.getInstance();
+        m.setSenderId(interner.intern(dto.getSender_id()));
+        m.setSenderName(interner.intern(dto.getSender_name()));
+        m.setSenderAvatarUrl(interner.intern(dto.getSender_avatar_url()));
         m.setMessage(dto.getMessage());
-        m.setType(dto.getType());
+        m.setType(Message.typeOf(dto.getType()));
         m.setFileUrl(dto.getFile_url());
         if (dto.getDuration() != null) {
             m.setDuration(dto.getDuration());
         }
+        m.setCreatedAt(dto.getCreated_at());
+        m.setConversationId(interner.intern(dto.getConversation_id()));
         
-        // Parse date
-        try {
-            // ISO 8601 parsing might be needed
-            // For now, if string parsing fails, use current date as fallback or specialized parser
-            // Simple approach: Supabase sends ISO string. 
-            // We can leave timestamp null and adapter can show "Now" or we parse it
-             if (dto.getCreated_at() != null) {
-                  // ISO 8601 Parser (Basic)
-                  // m.setTimestamp(...)
-                  // Often specific parser needed for varying precisions
-             }
-        } catch (Exception e) {}
-
-        // Fallback
-        if (m.getTimestamp() == null) {
-             m.setTimestamp(new java.util.Date());
-        }
+        // created_at as epoch millis; rows without one (not yet inserted) count as "now"
+        long createdAt = TimestampParser.parseEpochMillis(dto.getCreated_at());
+        m.setTimestamp(createdAt != TimestampParser.INVALID ? createdAt : System.currentTimeMillis());
         
         return m;
     }
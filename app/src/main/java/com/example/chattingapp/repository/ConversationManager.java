@@ -0,0 +1,260 @@
+package com.example.chattingapp.repository;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.example.chattingapp.model.Conversation;
+import com.example.chattingapp.model.MessageWindow;
+import com.example.chattingapp.services.MessageDto;
+import com.example.chattingapp.services.RealtimeManager;
+import com.example.chattingapp.services.SupabaseService;
+import com.example.chattingapp.utils.UserManager;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * App-wide registry of the conversations the user has touched (global chat, rooms, direct messages).
+ * Realtime channels are opened lazily: a conversation subscribes when a screen or an unread badge
+ * first asks for it, and stays subscribed for a while after it goes idle so switching back is free.
+ * Idle subscriptions and the message windows saved for quick reopening are both bounded, the least
+ * recently used conversation goes first. Main thread only.
+ */
+public class ConversationManager {
+
+    private static final String TAG = "ConversationManager";
+
+    // Channels kept open for conversations nobody is looking at, beyond this the LRU ones are closed
+    static final int MAX_IDLE_SUBSCRIPTIONS = 8;
+    // Rows kept across all saved windows
+    static final int MAX_CACHED_ROWS = 20_000;
+
+    public interface UnreadListener {
+        void onUnreadChanged(Conversation conversation, int unread);
+    }
+
+    private static ConversationManager instance;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final UserManager userManager;
+
+    // Access order: the eldest entry is the least recently used conversation
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final List<UnreadListener> unreadListeners = new ArrayList<>();
+    private int cachedRows = 0;
+
+    private final class Entry implements SupabaseService.MessageBatchCallback {
+        final Conversation conversation;
+        // Open chat screens; while one is open everything arriving counts as read
+        int openCount = 0;
+        // Badges and lists that want the unread count kept up to date
+        int watchCount = 0;
+        boolean subscribed = false;
+        MessageWindow savedWindow;
+        int unread = 0;
+
+        Entry(Conversation conversation) {
+            this.conversation = conversation;
+        }
+
+        boolean isIdle() {
+            return openCount == 0 && watchCount == 0;
+        }
+
+        // Called on the realtime lane
+        @Override
+        public void onNewMessages(List<MessageDto> messages) {
+            String selfId = userManager.getUserId();
+            int fromOthers = 0;
+            for (MessageDto dto : messages) {
+                if (!dto.getSender_id().equals(selfId)) fromOthers++;
+            }
+            if (fromOthers == 0) return;
+            final int count = fromOthers;
+            mainHandler.post(() -> {
+                if (openCount > 0) return;
+                unread += count;
+                notifyUnread(this);
+            });
+        }
+
+        @Override
+        public void onMessagesChanged(List<MessageDto> updated, List<String> deletedIds) {
+            // Edits and deletes don't change the unread count
+        }
+
+        @Override
+        public void onError(String error) {
+            Log.e(TAG, "Realtime error for " + conversation.getId() + ": " + error);
+        }
+    }
+
+    private ConversationManager(Context context) {
+        userManager = new UserManager(context.getApplicationContext());
+    }
+
+    public static void init(Context context) {
+        if (instance == null) instance = new ConversationManager(context);
+    }
+
+    public static ConversationManager getInstance() {
+        return instance;
+    }
+
+    /**
+     * A chat screen for conversation is showing; pair with {@link #close}.
+     * Subscribes if needed and marks the conversation read.
+     */
+    public void open(Conversation conversation) {
+        Entry entry = entryFor(conversation);
+        entry.openCount++;
+        subscribe(entry);
+        markRead(entry);
+    }
+
+    public void close(Conversation conversation) {
+        Entry entry = entries.get(conversation.getId());
+        if (entry == null || entry.openCount == 0) return;
+        entry.openCount--;
+        trim();
+    }
+
+    /**
+     * Keeps the unread count of conversation live (conversation list, badges); pair with {@link #unwatch}
+     */
+    public void watch(Conversation conversation) {
+        Entry entry = entryFor(conversation);
+        entry.watchCount++;
+        subscribe(entry);
+    }
+
+    public void unwatch(Conversation conversation) {
+        Entry entry = entries.get(conversation.getId());
+        if (entry == null || entry.watchCount == 0) return;
+        entry.watchCount--;
+        trim();
+    }
+
+    public int getUnreadCount(Conversation conversation) {
+        Entry entry = entries.get(conversation.getId());
+        return entry != null ? entry.unread : 0;
+    }
+
+    public void markRead(Conversation conversation) {
+        Entry entry = entries.get(conversation.getId());
+        if (entry != null) markRead(entry);
+    }
+
+    public void addUnreadListener(UnreadListener listener) {
+        if (!unreadListeners.contains(listener)) unreadListeners.add(listener);
+    }
+
+    public void removeUnreadListener(UnreadListener listener) {
+        unreadListeners.remove(listener);
+    }
+
+    /**
+     * Keeps what a closing chat screen showed, so reopening it paints at once.
+     * Older saved windows are dropped once the row budget is exceeded.
+     */
+    public void saveWindow(Conversation conversation, MessageWindow window) {
+        Entry entry = entryFor(conversation);
+        dropWindow(entry);
+        if (window == null || window.isEmpty() || window.size() > MAX_CACHED_ROWS) {
+            trim();
+            return;
+        }
+        entry.savedWindow = window;
+        cachedRows += window.size();
+        trim();
+    }
+
+    /**
+     * Window saved by the last screen that showed conversation, or null
+     */
+    public MessageWindow getSavedWindow(Conversation conversation) {
+        Entry entry = entries.get(conversation.getId());
+        return entry != null ? entry.savedWindow : null;
+    }
+
+    public String stats() {
+        int subscribed = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.subscribed) subscribed++;
+        }
+        return "conversations: tracked=" + entries.size() + " subscribed=" + subscribed
+                + " channels=" + RealtimeManager.INSTANCE.channelCount() + " cachedRows=" + cachedRows;
+    }
+
+    private Entry entryFor(Conversation conversation) {
+        Entry entry = entries.get(conversation.getId());
+        if (entry == null) {
+            entry = new Entry(conversation);
+            entries.put(conversation.getId(), entry);
+        }
+        return entry;
+    }
+
+    private void subscribe(Entry entry) {
+        if (entry.subscribed) return;
+        entry.subscribed = true;
+        Conversation c = entry.conversation;
+        RealtimeManager.INSTANCE.addMessageListener(c.getTable(), c.getRemoteId(), entry);
+    }
+
+    private void unsubscribe(Entry entry) {
+        if (!entry.subscribed) return;
+        entry.subscribed = false;
+        Conversation c = entry.conversation;
+        RealtimeManager.INSTANCE.removeMessageListener(c.getTable(), c.getRemoteId(), entry);
+    }
+
+    private void markRead(Entry entry) {
+        if (entry.unread == 0) return;
+        entry.unread = 0;
+        notifyUnread(entry);
+    }
+
+    private void notifyUnread(Entry entry) {
+        for (UnreadListener listener : new ArrayList<>(unreadListeners)) {
+            listener.onUnreadChanged(entry.conversation, entry.unread);
+        }
+    }
+
+    private void dropWindow(Entry entry) {
+        if (entry.savedWindow == null) return;
+        cachedRows -= entry.savedWindow.size();
+        entry.savedWindow = null;
+    }
+
+    /**
+     * Closes idle channels and drops saved windows past their budgets, least recently used first,
+     * then forgets conversations with nothing left to keep
+     */
+    private void trim() {
+        int idleSubscribed = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.subscribed && entry.isIdle()) idleSubscribed++;
+        }
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (idleSubscribed > MAX_IDLE_SUBSCRIPTIONS && entry.subscribed && entry.isIdle()) {
+                unsubscribe(entry);
+                idleSubscribed--;
+            }
+            if (cachedRows > MAX_CACHED_ROWS && entry.openCount == 0) {
+                dropWindow(entry);
+            }
+            // Unread counts of unsubscribed conversations can't be kept current, so they go too
+            if (entry.isIdle() && !entry.subscribed && entry.savedWindow == null) {
+                it.remove();
+            }
+        }
+    }
+}
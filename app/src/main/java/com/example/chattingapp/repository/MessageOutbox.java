@@ -0,0 +1,191 @@
+package com.example.chattingapp.repository;
+
+import android.util.Log;
+
+import com.example.chattingapp.model.Conversation;
+import com.example.chattingapp.services.MessageDto;
+import com.example.chattingapp.services.SupabaseService;
+import com.example.chattingapp.utils.NetworkHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable queue of outgoing messages, persisted in {@link MessageStore}.
+ * Messages written within a short window go out together in one multi-row insert.
+ * Failed flushes are retried with jittered exponential backoff, and the queue is drained as soon
+ * as the network comes back. Only one insert is in flight at a time and rows leave in the order
+ * they were queued, which keeps each sender's messages in order.
+ */
+public class MessageOutbox {
+
+    private static final String TAG = "MessageOutbox";
+
+    private static final long COALESCE_WINDOW_MS = 100;
+    private static final int MAX_BATCH = 50;
+    private static final long BASE_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 60_000;
+
+    private static MessageOutbox instance;
+
+    public interface Listener {
+        /**
+         * The rows of a sent batch as the server has them, including ones an earlier attempt
+         * already stored. Called on the outbox thread.
+         */
+        void onSent(List<MessageDto> messages);
+
+        /**
+         * A flush failed, these messages stay queued and will be retried. Called on the outbox thread.
+         */
+        void onSendFailed(List<String> messageIds, String error);
+    }
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Random random = new Random();
+    private final MessageStore store;
+
+    // Only touched on the outbox thread
+    private ScheduledFuture<?> scheduledFlush;
+    private long scheduledAt;
+    private boolean inFlight = false;
+    private int failedAttempts = 0;
+
+    private MessageOutbox(MessageStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Call after {@link MessageStore#init} and NetworkHelper init. Sends whatever was left
+     * queued when the process last died.
+     */
+    public static synchronized void init() {
+        if (instance != null || MessageStore.getInstance() == null) return;
+        instance = new MessageOutbox(MessageStore.getInstance());
+        NetworkHelper.getInstance().addNetworkCallback(isConnected -> {
+            if (isConnected) instance.drainNow();
+        });
+        instance.drainNow();
+    }
+
+    public static MessageOutbox getInstance() {
+        return instance;
+    }
+
+    public void addListener(Listener listener) {
+        if (!listeners.contains(listener)) listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public void enqueue(MessageDto message) {
+        executor.execute(() -> {
+            store.outboxAdd(message);
+            scheduleFlush(COALESCE_WINDOW_MS);
+        });
+    }
+
+    /**
+     * Messages still waiting to be sent, oldest first. Blocks on disk, don't call on the main thread.
+     */
+    public List<MessageDto> getQueued() {
+        return store.outboxPeek(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Skips any backoff and flushes right away (reconnect, manual retry)
+     */
+    public void drainNow() {
+        executor.execute(() -> {
+            failedAttempts = 0;
+            scheduleFlush(0);
+        });
+    }
+
+    private void scheduleFlush(long delayMs) {
+        // A running insert schedules the next flush itself when it completes
+        if (inFlight) return;
+        long runAt = System.currentTimeMillis() + delayMs;
+        if (scheduledFlush != null && !scheduledFlush.isDone()) {
+            if (scheduledAt <= runAt) return;
+            scheduledFlush.cancel(false);
+        }
+        scheduledAt = runAt;
+        scheduledFlush = executor.schedule(this::flush, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        scheduledFlush = null;
+        if (inFlight) return;
+
+        List<MessageDto> queued = store.outboxPeek(MAX_BATCH);
+        if (queued.isEmpty()) return;
+
+        // One insert goes to one table: send the leading run for the same conversation,
+        // the rest follows in the next flush so queue order is kept
+        String conversationId = queued.get(0).getConversation_id();
+        List<MessageDto> batch = new ArrayList<>(queued.size());
+        for (MessageDto dto : queued) {
+            if (!Objects.equals(dto.getConversation_id(), conversationId)) break;
+            batch.add(dto);
+        }
+
+        final List<String> ids = new ArrayList<>(batch.size());
+        for (MessageDto dto : batch) ids.add(dto.getId());
+
+        if (!NetworkHelper.getInstance().isConnected()) {
+            // Nothing to do until onConnectionChanged(true) drains us
+            notifyFailed(ids, "No connection");
+            return;
+        }
+
+        inFlight = true;
+        SupabaseService.INSTANCE.sendMessages(Conversation.tableFor(conversationId), batch, new SupabaseService.SendCallback() {
+            @Override
+            public void onSent(List<MessageDto> messages) {
+                executor.execute(() -> {
+                    store.outboxRemove(ids);
+                    inFlight = false;
+                    failedAttempts = 0;
+                    for (Listener listener : listeners) listener.onSent(messages);
+                    scheduleFlush(0);
+                });
+            }
+
+            @Override
+            public void onError(String error) {
+                executor.execute(() -> {
+                    inFlight = false;
+                    failedAttempts++;
+                    long delay = backoffDelay(failedAttempts);
+                    Log.w(TAG, "Flush of " + ids.size() + " messages failed (" + error + "), retrying in " + delay + "ms");
+                    notifyFailed(ids, error);
+                    scheduleFlush(delay);
+                });
+            }
+        });
+    }
+
+    private void notifyFailed(List<String> ids, String error) {
+        for (Listener listener : listeners) listener.onSendFailed(ids, error);
+    }
+
+    /**
+     * Exponential backoff with "equal jitter": half fixed, half random
+     */
+    private long backoffDelay(int attempt) {
+        long exp = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempt - 1, 16));
+        long half = exp / 2;
+        return half + (long) (random.nextDouble() * half);
+    }
+}
@@ -0,0 +1,416 @@
+package com.example.chattingapp.repository;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.example.chattingapp.model.Conversation;
+import com.example.chattingapp.model.Message;
+import com.example.chattingapp.services.MessageDto;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * On-device copy of chat history (SQLite).
+ * History is rendered from here first, network pages and realtime inserts are written through.
+ * Rows are kept in the same shape as the server rows, paged by (conversation, created_at, id);
+ * global chat rows are stored under {@link Conversation#GLOBAL_ID}.
+ * Also holds the outbox of messages that haven't reached the server yet, and the uploads in progress.
+ */
+public class MessageStore extends SQLiteOpenHelper {
+
+    private static final String DB_NAME = "messages.db";
+    private static final int DB_VERSION = 5;
+
+    static final String TABLE_GLOBAL = "global_messages";
+    // Outgoing messages waiting to be inserted on the server (see MessageOutbox)
+    static final String TABLE_OUTBOX = "outbox";
+    // Media uploads in progress (see UploadManager)
+    static final String TABLE_UPLOADS = "uploads";
+    // Public URLs of media already in storage, by content hash, so the same file isn't uploaded twice
+    static final String TABLE_MEDIA = "media";
+
+    private static final String COL_SEQ = "seq";
+
+    private static final String COL_ID = "id";
+    private static final String COL_SENDER_ID = "sender_id";
+    private static final String COL_SENDER_NAME = "sender_name";
+    private static final String COL_SENDER_AVATAR_URL = "sender_avatar_url";
+    private static final String COL_MESSAGE = "message";
+    private static final String COL_TYPE = "type";
+    private static final String COL_FILE_URL = "file_url";
+    private static final String COL_DURATION = "duration";
+    private static final String COL_CREATED_AT = "created_at";
+    private static final String COL_CONVERSATION_ID = "conversation_id";
+    private static final String COL_URI = "uri";
+    private static final String COL_BUCKET = "bucket";
+    private static final String COL_OBJECT_NAME = "object_name";
+    private static final String COL_CONTENT_TYPE = "content_type";
+    private static final String COL_LENGTH = "length";
+    private static final String COL_LOCATION = "location";
+    private static final String COL_UPLOADED = "uploaded";
+    private static final String COL_CONTENT_HASH = "content_hash";
+
+    private static final String[] COLUMNS = {
+            COL_ID, COL_SENDER_ID, COL_SENDER_NAME, COL_SENDER_AVATAR_URL, COL_MESSAGE,
+            COL_TYPE, COL_FILE_URL, COL_DURATION, COL_CREATED_AT, COL_CONVERSATION_ID
+    };
+
+    private static final String ORDER_NEWEST_FIRST = COL_CREATED_AT + " DESC, " + COL_ID + " DESC";
+
+    private static MessageStore instance;
+
+    private MessageStore(Context context) {
+        super(context.getApplicationContext(), DB_NAME, null, DB_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    public static synchronized void init(Context context) {
+        if (instance == null) {
+            instance = new MessageStore(context);
+        }
+    }
+
+    /**
+     * Returns the store, or null if {@link #init(Context)} hasn't run (the cache is then skipped)
+     */
+    public static MessageStore getInstance() {
+        return instance;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_GLOBAL + " ("
+                + COL_ID + " TEXT PRIMARY KEY NOT NULL, "
+                + COL_SENDER_ID + " TEXT NOT NULL, "
+                + COL_SENDER_NAME + " TEXT NOT NULL, "
+                + COL_SENDER_AVATAR_URL + " TEXT, "
+                + COL_MESSAGE + " TEXT, "
+                + COL_TYPE + " TEXT NOT NULL, "
+                + COL_FILE_URL + " TEXT, "
+                + COL_DURATION + " INTEGER, "
+                + COL_CREATED_AT + " TEXT NOT NULL, "
+                + COL_CONVERSATION_ID + " TEXT NOT NULL DEFAULT '" + Conversation.GLOBAL_ID + "')");
+        createConversationIndex(db);
+        createOutbox(db);
+        addOutboxConversation(db);
+        createUploads(db);
+        addUploadHash(db);
+        createMedia(db);
+    }
+
+    private void createUploads(SQLiteDatabase db) {
+        // type is the Message.TYPE_* code, created_at is epoch millis here
+        db.execSQL("CREATE TABLE " + TABLE_UPLOADS + " ("
+                + COL_ID + " TEXT PRIMARY KEY, "
+                + COL_URI + " TEXT NOT NULL, "
+                + COL_BUCKET + " TEXT NOT NULL, "
+                + COL_OBJECT_NAME + " TEXT NOT NULL, "
+                + COL_CONTENT_TYPE + " TEXT, "
+                + COL_LENGTH + " INTEGER NOT NULL, "
+                + COL_LOCATION + " TEXT, "
+                + COL_UPLOADED + " INTEGER NOT NULL DEFAULT 0, "
+                + COL_SENDER_ID + " TEXT NOT NULL, "
+                + COL_SENDER_NAME + " TEXT NOT NULL, "
+                + COL_MESSAGE + " TEXT, "
+                + COL_TYPE + " INTEGER NOT NULL, "
+                + COL_DURATION + " INTEGER, "
+                + COL_CONVERSATION_ID + " TEXT, "
+                + COL_CREATED_AT + " INTEGER NOT NULL)");
+    }
+
+    private void addUploadHash(SQLiteDatabase db) {
+        // NULL for uploads named before content addressing
+        db.execSQL("ALTER TABLE " + TABLE_UPLOADS + " ADD COLUMN " + COL_CONTENT_HASH + " TEXT");
+    }
+
+    private void createMedia(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_MEDIA + " ("
+                + COL_BUCKET + " TEXT NOT NULL, "
+                + COL_CONTENT_HASH + " TEXT NOT NULL, "
+                + COL_FILE_URL + " TEXT NOT NULL, "
+                + COL_CREATED_AT + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + COL_BUCKET + ", " + COL_CONTENT_HASH + "))");
+    }
+
+    private void createConversationIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX idx_" + TABLE_GLOBAL + "_conversation_created_at_id ON "
+                + TABLE_GLOBAL + " (" + COL_CONVERSATION_ID + ", " + COL_CREATED_AT + ", " + COL_ID + ")");
+    }
+
+    private void addOutboxConversation(SQLiteDatabase db) {
+        // NULL means the global chat, same as MessageDto.conversation_id
+        db.execSQL("ALTER TABLE " + TABLE_OUTBOX + " ADD COLUMN " + COL_CONVERSATION_ID + " TEXT");
+    }
+
+    private void createOutbox(SQLiteDatabase db) {
+        // seq keeps the send order, so each sender's messages go out in the order they were written
+        db.execSQL("CREATE TABLE " + TABLE_OUTBOX + " ("
+                + COL_SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COL_ID + " TEXT UNIQUE NOT NULL, "
+                + COL_SENDER_ID + " TEXT NOT NULL, "
+                + COL_SENDER_NAME + " TEXT NOT NULL, "
+                + COL_SENDER_AVATAR_URL + " TEXT, "
+                + COL_MESSAGE + " TEXT, "
+                + COL_TYPE + " TEXT NOT NULL, "
+                + COL_FILE_URL + " TEXT, "
+                + COL_DURATION + " INTEGER)");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            createOutbox(db);
+        }
+        if (oldVersion < 3) {
+            // Rooms and direct messages share the cache table; existing rows are global chat
+            db.execSQL("ALTER TABLE " + TABLE_GLOBAL + " ADD COLUMN " + COL_CONVERSATION_ID
+                    + " TEXT NOT NULL DEFAULT '" + Conversation.GLOBAL_ID + "'");
+            db.execSQL("DROP INDEX IF EXISTS idx_" + TABLE_GLOBAL + "_created_at_id");
+            createConversationIndex(db);
+            addOutboxConversation(db);
+        }
+        if (oldVersion < 4) {
+            createUploads(db);
+        }
+        if (oldVersion < 5) {
+            addUploadHash(db);
+            createMedia(db);
+        }
+    }
+
+    /**
+     * Newest page of a conversation, returned oldest -> newest like the network pages
+     */
+    public List<MessageDto> loadLatest(String conversationId, int limit) {
+        return query(COL_CONVERSATION_ID + " = ?", new String[]{conversationId}, limit);
+    }
+
+    /**
+     * Page of a conversation right before the (createdAt, id) cursor, returned oldest -> newest
+     */
+    public List<MessageDto> loadBefore(String conversationId, String createdAt, String id, int limit) {
+        return query(COL_CONVERSATION_ID + " = ? AND (" + COL_CREATED_AT + " < ? OR ("
+                        + COL_CREATED_AT + " = ? AND " + COL_ID + " < ?))",
+                new String[]{conversationId, createdAt, createdAt, id}, limit);
+    }
+
+    /**
+     * Inserts or replaces rows, rows without an id or created_at can't be paged and are skipped
+     */
+    public void upsert(List<Message> messages) {
+        if (messages.isEmpty()) return;
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (Message m : messages) {
+                if (m.getId() == null || m.getCreatedAt() == null) continue;
+                values.clear();
+                values.put(COL_ID, m.getId());
+                values.put(COL_SENDER_ID, m.getSenderId());
+                values.put(COL_SENDER_NAME, m.getSenderName());
+                values.put(COL_SENDER_AVATAR_URL, m.getSenderAvatarUrl());
+                values.put(COL_MESSAGE, m.getMessage());
+                values.put(COL_TYPE, Message.typeName(m.getType()));
+                values.put(COL_FILE_URL, m.getFileUrl());
+                values.put(COL_DURATION, m.getDuration());
+                values.put(COL_CREATED_AT, m.getCreatedAt());
+                values.put(COL_CONVERSATION_ID, m.getConversationId() != null ? m.getConversationId() : Conversation.GLOBAL_ID);
+                db.insertWithOnConflict(TABLE_GLOBAL, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Removes rows deleted on the server
+     */
+    public void delete(List<String> ids) {
+        if (ids.isEmpty()) return;
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (String id : ids) {
+                db.delete(TABLE_GLOBAL, COL_ID + " = ?", new String[]{id});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Queues an outgoing message. Ids already queued are ignored, so a retry keeps its place in line
+     */
+    public void outboxAdd(MessageDto dto) {
+        ContentValues values = new ContentValues();
+        values.put(COL_ID, dto.getId());
+        values.put(COL_SENDER_ID, dto.getSender_id());
+        values.put(COL_SENDER_NAME, dto.getSender_name());
+        values.put(COL_SENDER_AVATAR_URL, dto.getSender_avatar_url());
+        values.put(COL_MESSAGE, dto.getMessage());
+        values.put(COL_TYPE, dto.getType());
+        values.put(COL_FILE_URL, dto.getFile_url());
+        values.put(COL_DURATION, dto.getDuration());
+        values.put(COL_CONVERSATION_ID, dto.getConversation_id());
+        getWritableDatabase().insertWithOnConflict(TABLE_OUTBOX, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    /**
+     * Oldest queued messages first
+     */
+    public List<MessageDto> outboxPeek(int limit) {
+        List<MessageDto> result = new ArrayList<>();
+        try (Cursor c = getReadableDatabase().query(TABLE_OUTBOX,
+                new String[]{COL_ID, COL_SENDER_ID, COL_SENDER_NAME, COL_SENDER_AVATAR_URL, COL_MESSAGE,
+                        COL_TYPE, COL_FILE_URL, COL_DURATION, COL_CONVERSATION_ID},
+                null, null, null, null, COL_SEQ + " ASC", String.valueOf(limit))) {
+            while (c.moveToNext()) {
+                result.add(new MessageDto(
+                        c.getString(0),
+                        c.getString(1),
+                        c.getString(2),
+                        c.getString(3),
+                        c.getString(4),
+                        c.getString(5),
+                        c.getString(6),
+                        c.isNull(7) ? null : c.getLong(7),
+                        null,
+                        c.getString(8)));
+            }
+        }
+        return result;
+    }
+
+    public void outboxRemove(List<String> ids) {
+        if (ids.isEmpty()) return;
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (String id : ids) {
+                db.delete(TABLE_OUTBOX, COL_ID + " = ?", new String[]{id});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public void uploadAdd(UploadJob job) {
+        ContentValues values = new ContentValues();
+        values.put(COL_ID, job.id);
+        values.put(COL_URI, job.uri);
+        values.put(COL_BUCKET, job.bucket);
+        values.put(COL_OBJECT_NAME, job.objectName);
+        values.put(COL_CONTENT_TYPE, job.contentType);
+        values.put(COL_LENGTH, job.length);
+        values.put(COL_LOCATION, job.location);
+        values.put(COL_UPLOADED, job.uploaded);
+        values.put(COL_SENDER_ID, job.senderId);
+        values.put(COL_SENDER_NAME, job.senderName);
+        values.put(COL_MESSAGE, job.text);
+        values.put(COL_TYPE, job.type);
+        values.put(COL_DURATION, job.duration);
+        values.put(COL_CONVERSATION_ID, job.conversationId);
+        values.put(COL_CREATED_AT, job.createdAt);
+        values.put(COL_CONTENT_HASH, job.contentHash);
+        getWritableDatabase().insertWithOnConflict(TABLE_UPLOADS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Records how far the server got, called after every confirmed chunk
+     */
+    public void uploadProgress(String id, String location, long uploaded) {
+        ContentValues values = new ContentValues();
+        values.put(COL_LOCATION, location);
+        values.put(COL_UPLOADED, uploaded);
+        getWritableDatabase().update(TABLE_UPLOADS, values, COL_ID + " = ?", new String[]{id});
+    }
+
+    public void uploadRemove(String id) {
+        getWritableDatabase().delete(TABLE_UPLOADS, COL_ID + " = ?", new String[]{id});
+    }
+
+    /**
+     * Uploads not finished yet, oldest first
+     */
+    public List<UploadJob> uploadPending() {
+        List<UploadJob> result = new ArrayList<>();
+        try (Cursor c = getReadableDatabase().query(TABLE_UPLOADS,
+                new String[]{COL_ID, COL_URI, COL_BUCKET, COL_OBJECT_NAME, COL_CONTENT_TYPE, COL_LENGTH,
+                        COL_LOCATION, COL_UPLOADED, COL_SENDER_ID, COL_SENDER_NAME, COL_MESSAGE, COL_TYPE,
+                        COL_DURATION, COL_CONVERSATION_ID, COL_CREATED_AT, COL_CONTENT_HASH},
+                null, null, null, null, COL_CREATED_AT + " ASC")) {
+            while (c.moveToNext()) {
+                UploadJob job = new UploadJob();
+                job.id = c.getString(0);
+                job.uri = c.getString(1);
+                job.bucket = c.getString(2);
+                job.objectName = c.getString(3);
+                job.contentType = c.getString(4);
+                job.length = c.getLong(5);
+                job.location = c.getString(6);
+                job.uploaded = c.getLong(7);
+                job.senderId = c.getString(8);
+                job.senderName = c.getString(9);
+                job.text = c.getString(10);
+                job.type = c.getInt(11);
+                job.duration = c.isNull(12) ? 0 : c.getLong(12);
+                job.conversationId = c.getString(13);
+                job.createdAt = c.getLong(14);
+                job.contentHash = c.getString(15);
+                result.add(job);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Public URL of media with this content hash already uploaded to bucket, or null
+     */
+    public String mediaUrl(String bucket, String contentHash) {
+        try (Cursor c = getReadableDatabase().query(TABLE_MEDIA, new String[]{COL_FILE_URL},
+                COL_BUCKET + " = ? AND " + COL_CONTENT_HASH + " = ?", new String[]{bucket, contentHash},
+                null, null, null)) {
+            return c.moveToFirst() ? c.getString(0) : null;
+        }
+    }
+
+    public void mediaRemember(String bucket, String contentHash, String url) {
+        ContentValues values = new ContentValues();
+        values.put(COL_BUCKET, bucket);
+        values.put(COL_CONTENT_HASH, contentHash);
+        values.put(COL_FILE_URL, url);
+        values.put(COL_CREATED_AT, System.currentTimeMillis());
+        getWritableDatabase().insertWithOnConflict(TABLE_MEDIA, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    private List<MessageDto> query(String selection, String[] args, int limit) {
+        List<MessageDto> result = new ArrayList<>();
+        try (Cursor c = getReadableDatabase().query(TABLE_GLOBAL, COLUMNS, selection, args,
+                null, null, ORDER_NEWEST_FIRST, String.valueOf(limit))) {
+            while (c.moveToNext()) {
+                result.add(new MessageDto(
+                        c.getString(0),
+                        c.getString(1),
+                        c.getString(2),
+                        c.getString(3),
+                        c.getString(4),
+                        c.getString(5),
+                        c.getString(6),
+                        c.isNull(7) ? null : c.getLong(7),
+                        c.getString(8),
+                        Conversation.GLOBAL_ID.equals(c.getString(9)) ? null : c.getString(9)));
+            }
+        }
+        Collections.reverse(result);
+        return result;
+    }
+}
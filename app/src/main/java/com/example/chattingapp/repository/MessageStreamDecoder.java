@@ -0,0 +1,107 @@
+package com.example.chattingapp.repository;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.example.chattingapp.model.Message;
+import com.example.chattingapp.utils.StringInterner;
+import com.example.chattingapp.utils.TimestampParser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes a PostgREST JSON array of global_messages rows straight into {@link Message} objects
+ * while the body is still being read, without building the whole document or DTOs first.
+ * Rows are handed out in chunks, in response order.
+ */
+class MessageStreamDecoder {
+
+    interface ChunkListener {
+        /**
+         * Called on the decoding thread. The list is owned by the listener.
+         */
+        void onChunk(List<Message> chunk);
+    }
+
+    private MessageStreamDecoder() {}
+
+    /**
+     * Reads the whole array, returns the number of rows decoded
+     */
+    static int decode(InputStream body, int chunkSize, ChunkListener listener) throws IOException {
+        int rows = 0;
+        try (JsonReader reader = new JsonReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+            List<Message> chunk = new ArrayList<>(chunkSize);
+            reader.beginArray();
+            while (reader.hasNext()) {
+                chunk.add(readMessage(reader));
+                rows++;
+                if (chunk.size() >= chunkSize) {
+                    listener.onChunk(chunk);
+                    chunk = new ArrayList<>(chunkSize);
+                }
+            }
+            reader.endArray();
+            if (!chunk.isEmpty()) listener.onChunk(chunk);
+        }
+        return rows;
+    }
+
+    // Same mapping as ChatRepository.mapToDomain
+    private static Message readMessage(JsonReader reader) throws IOException {
+        StringInterner interner = StringInterner.getInstance();
+        Message m = new Message();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "id":
+                    m.setId(reader.nextString());
+                    break;
+                case "sender_id":
+                    m.setSenderId(interner.intern(reader.nextString()));
+                    break;
+                case "sender_name":
+                    m.setSenderName(interner.intern(reader.nextString()));
+                    break;
+                case "sender_avatar_url":
+                    m.setSenderAvatarUrl(interner.intern(reader.nextString()));
+                    break;
+                case "message":
+                    m.setMessage(reader.nextString());
+                    break;
+                case "type":
+                    m.setType(Message.typeOf(reader.nextString()));
+                    break;
+                case "file_url":
+                    m.setFileUrl(reader.nextString());
+                    break;
+                case "duration":
+                    m.setDuration(reader.nextLong());
+                    break;
+                case "conversation_id":
+                    m.setConversationId(interner.intern(reader.nextString()));
+                    break;
+                case "created_at":
+                    m.setCreatedAt(reader.nextString());
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        long createdAt = TimestampParser.parseEpochMillis(m.getCreatedAt());
+        m.setTimestamp(createdAt != TimestampParser.INVALID ? createdAt : System.currentTimeMillis());
+        return m;
+    }
+}
@@ -0,0 +1,332 @@
+package com.example.chattingapp.repository;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.example.chattingapp.model.Conversation;
+import com.example.chattingapp.services.RealtimeManager;
+import com.example.chattingapp.services.SignalDto;
+import com.example.chattingapp.utils.TimerWheel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Typing indicator and "who's here" for one conversation, sent as broadcasts on the conversation's
+ * realtime channel.
+ *
+ * Sending: keystrokes only move a timestamp. "typing" goes out when typing starts and is refreshed
+ * while it goes on, "online" when it stops (idle debounce or message sent) and as a slow keep-alive.
+ * Every signal passes one limiter, so a client never sends more than one signal per
+ * MIN_SIGNAL_INTERVAL_MS however fast it types; a signal that has to wait is coalesced with
+ * whatever comes next (latest state wins). Refresh intervals stretch with the number of peers so
+ * the whole room stays within a fixed signal budget.
+ *
+ * Receiving: every signal says how long it's valid for. Peers expire on one shared
+ * {@link TimerWheel} instead of a timer each, and bursts of signals or expiries become one
+ * callback. A newcomer learns who's here from the keep-alives as they come in; nobody answers a
+ * join, since that would cost one signal per peer. Main thread only, except for signals arriving
+ * from the realtime lane.
+ */
+public class PresenceRepository {
+
+    static final String STATE_TYPING = "typing";
+    static final String STATE_ONLINE = "online";
+    static final String STATE_OFFLINE = "offline";
+
+    // Hard cap per client, whatever happens
+    private static final long MIN_SIGNAL_INTERVAL_MS = 1000;
+    // No keystroke for this long means we stopped typing
+    private static final long TYPING_IDLE_MS = 4000;
+    private static final long TYPING_REFRESH_MS = 3000;
+    private static final long PRESENCE_REFRESH_MS = 30_000;
+    private static final long MAX_PRESENCE_REFRESH_MS = 300_000;
+    // Signals per second the whole room may spend on each kind of refresh
+    private static final int ROOM_TYPING_BUDGET = 4;
+    private static final int ROOM_PRESENCE_BUDGET = 2;
+    // A state lives for a bit over two refreshes, one lost signal doesn't make it flicker
+    private static final float TTL_FACTOR = 2.5f;
+
+    private static final long WHEEL_TICK_MS = 500;
+    private static final int WHEEL_SLOTS = 2048; // ~17 minutes, more than the longest TTL
+
+    public interface PresenceCallback {
+        /**
+         * Names of the peers typing right now, and how many peers are here (typing or not)
+         */
+        void onPresenceChanged(List<String> typingNames, int onlineCount);
+    }
+
+    private static final class Peer {
+        String name;
+        boolean typing;
+        // TTL of the peer's last "online", used once its typing state runs out
+        long presenceTtlMs = (long) (PRESENCE_REFRESH_MS * TTL_FACTOR);
+    }
+
+    private final Conversation conversation;
+    private final String userId;
+    private String userName;
+    private PresenceCallback callback;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private boolean started = false;
+
+    // Sending
+    private String announced;       // last state sent
+    private String pendingState;    // waiting for the limiter
+    private long lastSentAt = -MIN_SIGNAL_INTERVAL_MS;
+    private long typingSentAt;
+    private long lastKeystrokeAt;
+    private boolean idleCheckPosted = false;
+
+    // Receiving
+    private final Map<String, Peer> peers = new HashMap<>();
+    private final TimerWheel<String> expiries = new TimerWheel<>(WHEEL_TICK_MS, WHEEL_SLOTS, this::onExpired);
+    private final Queue<SignalDto> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainPosted = new AtomicBoolean(false);
+    private boolean notifyPosted = false;
+    private int typingCount = 0;
+
+    public PresenceRepository(Conversation conversation, String userId, String userName) {
+        this.conversation = conversation;
+        this.userId = userId;
+        this.userName = userName;
+    }
+
+    public void init(PresenceCallback callback) {
+        this.callback = callback;
+    }
+
+    public void setUserName(String userName) {
+        this.userName = userName;
+    }
+
+    /**
+     * Joins: starts listening for peers and announces us as online
+     */
+    public void start() {
+        if (started || userId == null) return;
+        started = true;
+        RealtimeManager.INSTANCE.addSignalListener(conversation.getTable(), conversation.getRemoteId(), signalListener);
+        request(STATE_ONLINE);
+        mainHandler.postDelayed(presenceRefresh, presenceRefreshMs());
+    }
+
+    /**
+     * Leaves: says goodbye (past the limiter, it's the last one) and forgets every peer
+     */
+    public void stop() {
+        if (!started) return;
+        started = false;
+        mainHandler.removeCallbacks(flushPending);
+        mainHandler.removeCallbacks(idleCheck);
+        mainHandler.removeCallbacks(presenceRefresh);
+        mainHandler.removeCallbacks(notifyChanged);
+        notifyPosted = false;
+        idleCheckPosted = false;
+        pendingState = null;
+        send(STATE_OFFLINE, 0);
+        announced = null;
+        RealtimeManager.INSTANCE.removeSignalListener(conversation.getTable(), conversation.getRemoteId(), signalListener);
+        inbox.clear();
+        peers.clear();
+        expiries.clear();
+        typingCount = 0;
+        if (callback != null) callback.onPresenceChanged(new ArrayList<>(), 0);
+    }
+
+    /**
+     * Call on every edit of the input; cheap enough for each keystroke
+     */
+    public void onUserTyping() {
+        if (!started) return;
+        long now = SystemClock.uptimeMillis();
+        lastKeystrokeAt = now;
+        if (!idleCheckPosted) {
+            idleCheckPosted = true;
+            mainHandler.postDelayed(idleCheck, TYPING_IDLE_MS);
+        }
+        boolean typingKnown = STATE_TYPING.equals(announced) || STATE_TYPING.equals(pendingState);
+        if (!typingKnown || (pendingState == null && now - typingSentAt >= typingRefreshMs())) {
+            request(STATE_TYPING);
+        }
+    }
+
+    /**
+     * The message went out, so we're not typing anymore
+     */
+    public void onMessageSent() {
+        if (!started) return;
+        if (STATE_TYPING.equals(announced) || STATE_TYPING.equals(pendingState)) {
+            request(STATE_ONLINE);
+        }
+    }
+
+    // Sending
+
+    private void request(String state) {
+        pendingState = state;
+        long wait = lastSentAt + MIN_SIGNAL_INTERVAL_MS - SystemClock.uptimeMillis();
+        if (wait <= 0) {
+            mainHandler.removeCallbacks(flushPending);
+            flushPending.run();
+        } else {
+            // Re-posting keeps a single pending flush
+            mainHandler.removeCallbacks(flushPending);
+            mainHandler.postDelayed(flushPending, wait);
+        }
+    }
+
+    private final Runnable flushPending = () -> {
+        String state = pendingState;
+        if (state == null || !started) return;
+        pendingState = null;
+        long refresh = STATE_TYPING.equals(state) ? typingRefreshMs() : presenceRefreshMs();
+        send(state, (long) (refresh * TTL_FACTOR));
+    };
+
+    private void send(String state, long ttlMs) {
+        long now = SystemClock.uptimeMillis();
+        lastSentAt = now;
+        announced = state;
+        if (STATE_TYPING.equals(state)) typingSentAt = now;
+        RealtimeManager.INSTANCE.sendSignal(conversation.getTable(), conversation.getRemoteId(),
+                new SignalDto(userId, userName, state, ttlMs));
+    }
+
+    private final Runnable idleCheck = new Runnable() {
+        @Override
+        public void run() {
+            long idleFor = SystemClock.uptimeMillis() - lastKeystrokeAt;
+            if (idleFor < TYPING_IDLE_MS) {
+                // Still typing: one repost per idle period instead of one per keystroke
+                mainHandler.postDelayed(this, TYPING_IDLE_MS - idleFor);
+                return;
+            }
+            idleCheckPosted = false;
+            if (STATE_TYPING.equals(announced) || STATE_TYPING.equals(pendingState)) {
+                request(STATE_ONLINE);
+            }
+        }
+    };
+
+    private final Runnable presenceRefresh = new Runnable() {
+        @Override
+        public void run() {
+            if (!started) return;
+            long refresh = presenceRefreshMs();
+            // Any signal we sent recently already told everyone we're here
+            if (pendingState == null && SystemClock.uptimeMillis() - lastSentAt >= refresh) {
+                request(STATE_TYPING.equals(announced) ? STATE_TYPING : STATE_ONLINE);
+            }
+            mainHandler.postDelayed(this, refresh);
+        }
+    };
+
+    private long typingRefreshMs() {
+        // Everyone typing at once still adds up to ROOM_TYPING_BUDGET signals a second
+        return Math.max(TYPING_REFRESH_MS, (typingCount + 1) * 1000L / ROOM_TYPING_BUDGET);
+    }
+
+    private long presenceRefreshMs() {
+        long scaled = (peers.size() + 1) * 1000L / ROOM_PRESENCE_BUDGET;
+        return Math.min(MAX_PRESENCE_REFRESH_MS, Math.max(PRESENCE_REFRESH_MS, scaled));
+    }
+
+    // Receiving
+
+    private final RealtimeManager.SignalListener signalListener = signal -> {
+        // Realtime lane: queue it, and have one main-thread pass drain whatever piled up
+        inbox.add(signal);
+        if (drainPosted.compareAndSet(false, true)) mainHandler.post(this::drainInbox);
+    };
+
+    private void drainInbox() {
+        drainPosted.set(false);
+        boolean changed = false;
+        SignalDto signal;
+        while ((signal = inbox.poll()) != null) {
+            if (started) changed |= apply(signal);
+        }
+        if (changed) postNotify();
+    }
+
+    private boolean apply(SignalDto signal) {
+        String id = signal.getUser_id();
+        if (id.equals(userId)) return false;
+
+        if (STATE_OFFLINE.equals(signal.getState())) {
+            Peer gone = peers.remove(id);
+            if (gone == null) return false;
+            if (gone.typing) typingCount--;
+            expiries.cancel(id);
+            return true;
+        }
+
+        boolean typing = STATE_TYPING.equals(signal.getState());
+        long ttl = signal.getTtl_ms() != null && signal.getTtl_ms() > 0
+                ? signal.getTtl_ms()
+                : (long) ((typing ? TYPING_REFRESH_MS : PRESENCE_REFRESH_MS) * TTL_FACTOR);
+        expiries.schedule(id, ttl);
+
+        Peer peer = peers.get(id);
+        boolean changed = false;
+        if (peer == null) {
+            peer = new Peer();
+            peers.put(id, peer);
+            changed = true;
+        }
+        if (!typing) peer.presenceTtlMs = ttl;
+        String name = signal.getUser_name() != null ? signal.getUser_name() : "Someone";
+        if (!name.equals(peer.name)) {
+            peer.name = name;
+            changed |= peer.typing || typing;
+        }
+        if (peer.typing != typing) {
+            peer.typing = typing;
+            typingCount += typing ? 1 : -1;
+            changed = true;
+        }
+        return changed;
+    }
+
+    private void onExpired(List<String> ids) {
+        boolean changed = false;
+        for (String id : ids) {
+            Peer peer = peers.get(id);
+            if (peer == null) continue;
+            if (peer.typing) {
+                // Missed the "online" after typing: stop showing it, but they're probably still here
+                peer.typing = false;
+                typingCount--;
+                expiries.schedule(id, peer.presenceTtlMs);
+            } else {
+                peers.remove(id);
+            }
+            changed = true;
+        }
+        if (changed) postNotify();
+    }
+
+    private void postNotify() {
+        if (notifyPosted) return;
+        notifyPosted = true;
+        mainHandler.post(notifyChanged);
+    }
+
+    private final Runnable notifyChanged = () -> {
+        notifyPosted = false;
+        if (callback == null) return;
+        List<String> typingNames = new ArrayList<>(typingCount);
+        for (Peer peer : peers.values()) {
+            if (peer.typing) typingNames.add(peer.name);
+        }
+        callback.onPresenceChanged(typingNames, peers.size());
+    };
+}
@@ -20,7 +20,8 @@ public class StorageRepository {
     
     /**
      * Uploads an image to Supabase storage
-     * Image will be compressed to 4MB if needed
+     * Image will be compressed to 4MB if needed. Decodes and encodes on the calling thread,
+     * so call off the main thread; chat images go through UploadManager.sendImages instead.
      */
     public void uploadImage(String filePath, String fileName, UploadCallback callback) {
         try {
@@ -30,15 +31,18 @@ public class StorageRepository {
                 callback.onError(new Exception("Failed to process image"));
                 return;
             }
-            
-            // Upload to Supabase Storage
-            // Storage bucket = SupabaseClientHelper.client.getStorage().getBucket(BUCKET_IMAGES);
-            // bucket.upload(fileName, compressedData)...
-            
-            // For now, return placeholder
-            String publicUrl = "https://czyzknaikvxtyexrkzpi.supabase.co/storage/v1/object/public/images/" + fileName;
-            callback.onSuccess(publicUrl);
-            
+
+            SupabaseService.INSTANCE.uploadFile(BUCKET_IMAGES, fileName, compressedData, new SupabaseService.UploadCallback() {
+                @Override
+                public void onSuccess(String publicUrl) {
+                    callback.onSuccess(publicUrl);
+                }
+
+                @Override
+                public void onError(String message) {
+                    callback.onError(new Exception(message));
+                }
+            });
         } catch (Exception e) {
             callback.onError(e);
         }
@@ -0,0 +1,38 @@
+package com.example.chattingapp.repository;
+
+/**
+ * A media upload and the message to post once it's done, persisted in {@link MessageStore}
+ * so the upload resumes (from the last confirmed offset) after the app was killed.
+ * The id is also the id of the message that gets posted.
+ */
+public class UploadJob {
+
+    String id;
+    String uri;
+    String bucket;
+    String objectName;
+    String contentType;
+    long length;
+    // Resumable upload URL on the server, null until the upload was created there
+    String location;
+    // Bytes the server confirmed
+    long uploaded;
+    // SHA-256 of the picked file, the object is named after it; null for older uploads
+    String contentHash;
+
+    // The message, posted with the public URL as file_url
+    String senderId;
+    String senderName;
+    String text;
+    int type;
+    long duration;
+    String conversationId;
+
+    long createdAt;
+
+    public String getId() { return id; }
+    public String getConversationId() { return conversationId; }
+    public int getType() { return type; }
+    public long getLength() { return length; }
+    public long getUploaded() { return uploaded; }
+}
@@ -0,0 +1,548 @@
+package com.example.chattingapp.repository;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.MimeTypeMap;
+
+import com.example.chattingapp.model.Conversation;
+import com.example.chattingapp.model.Message;
+import com.example.chattingapp.services.MessageDto;
+import com.example.chattingapp.services.SupabaseService;
+import com.example.chattingapp.utils.BitmapDecoder;
+import com.example.chattingapp.utils.ContentHash;
+import com.example.chattingapp.utils.ImageCompressor;
+import com.example.chattingapp.utils.MediaValidator;
+import com.example.chattingapp.utils.MessageIds;
+import com.example.chattingapp.utils.NetworkHelper;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import kotlin.Unit;
+import kotlinx.coroutines.Job;
+
+/**
+ * Sends media messages: uploads the file with resumable chunked uploads, then queues the message
+ * in the {@link MessageOutbox}. The file is streamed from the ContentResolver (never loaded into
+ * memory) and everything that touches it runs off the main thread. Each upload is recorded in
+ * {@link MessageStore} with the last offset the server confirmed, so uploads resume after a dropped
+ * connection (when the network returns) or a killed process (on the next start).
+ * Objects are named by the SHA-256 of the picked file. Media sent before (found in the local
+ * index) or already in storage (found with a HEAD request) is posted with the existing URL
+ * instead of being uploaded again.
+ * Images are compressed first, a few at a time, into files in the cache. Uploads run at most
+ * {@link #setMaxConcurrentUploads} at once and finish in any order, but the messages of a
+ * conversation are posted in the order they were picked (job ids sort by creation).
+ */
+public class UploadManager {
+
+    private static final String TAG = "UploadManager";
+
+    static final String BUCKET_AUDIOS = "audios";
+    static final String BUCKET_IMAGES = "images";
+
+    // Each compression holds a decoded bitmap (up to BitmapDecoder.defaultBudget()), keep it to two
+    private static final int COMPRESS_THREADS = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+    private static final int DEFAULT_CONCURRENT_UPLOADS = 3;
+    // The upload lane's own cap, more would only wait there
+    private static final int MAX_CONCURRENT_UPLOADS = 4;
+    // Failed resumes before a job is given up on; each one already retried its chunks
+    private static final int MAX_UPLOAD_FAILURES = 5;
+    // Compressed images waiting to be uploaded, under the cache dir
+    private static final String COMPRESSED_DIR = "outgoing_images";
+
+    private static UploadManager instance;
+
+    public interface Listener {
+        /**
+         * Main thread, only when the percentage changes
+         */
+        void onUploadProgress(String jobId, String conversationId, int percent);
+
+        void onUploadFinished(String jobId, String conversationId);
+
+        /**
+         * The upload is kept and resumed when the network comes back, unless the server rejected
+         * it or it failed too often; then the message is dropped
+         */
+        void onUploadFailed(String jobId, String conversationId, String error);
+    }
+
+    private final ContentResolver resolver;
+    private final MessageStore store;
+    private final File compressedDir;
+    // Reads file metadata and starts uploads, so the caller never waits on the disk
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    // Decodes and encodes images, below the UI thread's priority so scrolling stays smooth
+    private final ExecutorService compressor = Executors.newFixedThreadPool(COMPRESS_THREADS, r -> new Thread(() -> {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        r.run();
+    }, "image-compress"));
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<String, Job> running = new ConcurrentHashMap<>();
+    // Job id -> failed attempts since the app started
+    private final Map<String, Integer> failures = new ConcurrentHashMap<>();
+
+    // Guarded by this: uploads waiting for a slot, in the order they were submitted
+    private final ArrayDeque<UploadJob> waiting = new ArrayDeque<>();
+    private int maxConcurrentUploads = DEFAULT_CONCURRENT_UPLOADS;
+
+    // Guarded by postOrder: jobs not posted yet per conversation, by id (= pick order), and
+    // the public URL of the ones whose upload is done
+    private final Map<String, TreeMap<String, UploadJob>> postOrder = new HashMap<>();
+    private final Map<String, String> uploadedUrls = new HashMap<>();
+
+    private UploadManager(Context context, MessageStore store) {
+        this.resolver = context.getApplicationContext().getContentResolver();
+        this.store = store;
+        this.compressedDir = new File(context.getApplicationContext().getCacheDir(), COMPRESSED_DIR);
+    }
+
+    /**
+     * Call after {@link MessageOutbox#init}. Resumes uploads left over from the last run.
+     */
+    public static synchronized void init(Context context) {
+        if (instance != null || MessageStore.getInstance() == null) return;
+        instance = new UploadManager(context, MessageStore.getInstance());
+        NetworkHelper.getInstance().addNetworkCallback(isConnected -> {
+            if (isConnected) instance.resumeAll();
+        });
+        instance.resumeAll();
+    }
+
+    public static UploadManager getInstance() {
+        return instance;
+    }
+
+    public void addListener(Listener listener) {
+        if (!listeners.contains(listener)) listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Uploads running at once (1 to 4, default 3); small images go faster with a few in parallel
+     */
+    public synchronized void setMaxConcurrentUploads(int max) {
+        maxConcurrentUploads = Math.max(1, Math.min(MAX_CONCURRENT_UPLOADS, max));
+        pump();
+    }
+
+    /**
+     * Uploads the audio file at uri and posts it as an audio message to conversation.
+     * Returns the job id (also the id of the message that will be posted).
+     */
+    public String sendAudio(Uri uri, Conversation conversation, String senderId, String senderName) {
+        final String id = MessageIds.next();
+        UploadJob placeholder = holdPlace(id, conversation);
+        executor.execute(() -> {
+            // One streaming read for the hash (and the real size), the upload reads it again
+            ContentHash hash = hashOf(uri);
+            if (hash == null) {
+                abandon(placeholder, "Failed to read file");
+                return;
+            }
+            UploadJob job = newJob(id, uri, conversation, senderId, senderName);
+            job.bucket = BUCKET_AUDIOS;
+            job.type = Message.TYPE_AUDIO;
+            job.text = "Sent an audio message";
+            job.duration = probeDuration(uri);
+            job.length = hash.getLength();
+            job.contentHash = hash.getHex();
+            job.objectName = hash.getHex() + "." + extensionOf(job.contentType, "mp3");
+            holdPlace(job);
+            if (reuseKnown(job)) return;
+            store.uploadAdd(job);
+            submit(job);
+        });
+        return id;
+    }
+
+    /**
+     * Compresses and uploads the images, then posts one image message per image to conversation,
+     * in the order given. Returns the job ids in the same order.
+     */
+    public List<String> sendImages(List<Uri> uris, Conversation conversation, String senderId, String senderName) {
+        List<String> ids = new ArrayList<>(uris.size());
+        for (Uri uri : uris) {
+            final String id = MessageIds.next();
+            ids.add(id);
+            UploadJob placeholder = holdPlace(id, conversation);
+            compressor.execute(() -> {
+                UploadJob job;
+                try {
+                    job = compressImage(id, uri, conversation, senderId, senderName);
+                } catch (IOException e) {
+                    abandon(placeholder, e.getMessage());
+                    return;
+                }
+                holdPlace(job);
+                if (reuseKnown(job)) return;
+                store.uploadAdd(job);
+                submit(job);
+            });
+        }
+        return ids;
+    }
+
+    /**
+     * Restarts every recorded upload that isn't running
+     */
+    public void resumeAll() {
+        executor.execute(() -> {
+            for (UploadJob job : store.uploadPending()) {
+                // Done already, only waiting for an earlier message to be posted first
+                if (isUploaded(job.id)) continue;
+                holdPlace(job);
+                submit(job);
+            }
+        });
+    }
+
+    /**
+     * Decodes within the memory budget, encodes to the chat target and writes the result to the
+     * cache, so the upload (and a resume after a restart) streams a small local file.
+     * Images already in the media index come back without a file, see reuseKnown.
+     * The exception message is meant for the user.
+     */
+    private UploadJob compressImage(String id, Uri uri, Conversation conversation, String senderId,
+                                    String senderName) throws IOException {
+        long startedAt = SystemClock.elapsedRealtime();
+        String mimeType = resolver.getType(uri);
+        if (!MediaValidator.isImage(mimeType)) throw new IOException(MediaValidator.getBlockedMessage(mimeType));
+        // Keyed by the picked file, not the compressed bytes: the same photo maps to the same object
+        // (whichever device compressed it), and a known one skips the compression too
+        ContentHash hash = hashOf(uri);
+        if (hash == null) throw new IOException("Failed to read file");
+        UploadJob job = new UploadJob();
+        job.id = id;
+        job.bucket = BUCKET_IMAGES;
+        job.contentHash = hash.getHex();
+        job.senderId = senderId;
+        job.senderName = senderName;
+        job.text = "Sent an image";
+        job.type = Message.TYPE_IMAGE;
+        job.conversationId = conversation.getRemoteId();
+        job.createdAt = System.currentTimeMillis();
+        if (store.mediaUrl(job.bucket, job.contentHash) != null) return job;
+
+        File file = null;
+        try {
+            ImageCompressor.Encoded encoded = ImageCompressor.compress(BitmapDecoder.fromUri(resolver, uri),
+                    ImageCompressor.Target.CHAT_IMAGE);
+            if (encoded == null) throw new IOException("Not a readable image");
+            if (!compressedDir.isDirectory() && !compressedDir.mkdirs()) throw new IOException("No cache dir");
+            file = new File(compressedDir, id + "." + encoded.getExtension());
+            try (OutputStream out = new FileOutputStream(file)) {
+                encoded.writeTo(out);
+            }
+            job.uri = Uri.fromFile(file).toString();
+            job.objectName = job.contentHash + "." + encoded.getExtension();
+            job.contentType = encoded.getMimeType();
+            job.length = encoded.size();
+            Log.d(TAG, "Compressed " + uri + " to " + job.length + " bytes in "
+                    + (SystemClock.elapsedRealtime() - startedAt) + "ms");
+            return job;
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            Log.w(TAG, "Could not compress " + uri, e);
+            if (file != null) file.delete();
+            throw new IOException("Failed to process image", e);
+        }
+    }
+
+    private UploadJob newJob(String id, Uri uri, Conversation conversation, String senderId, String senderName) {
+        // Keep read access past this process if the picker allows it, resuming after a restart needs it
+        try {
+            resolver.takePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        } catch (SecurityException e) {
+            Log.w(TAG, "No persistable permission for " + uri + ", the upload won't survive a restart");
+        }
+        UploadJob job = new UploadJob();
+        job.id = id;
+        job.uri = uri.toString();
+        job.contentType = resolver.getType(uri);
+        job.senderId = senderId;
+        job.senderName = senderName;
+        job.conversationId = conversation.getRemoteId();
+        job.createdAt = System.currentTimeMillis();
+        return job;
+    }
+
+    /**
+     * Queues job for an upload slot, unless it's queued or running already
+     */
+    private synchronized void submit(UploadJob job) {
+        if (running.containsKey(job.id)) return;
+        for (UploadJob queued : waiting) {
+            if (queued.id.equals(job.id)) return;
+        }
+        waiting.addLast(job);
+        pump();
+    }
+
+    private synchronized void pump() {
+        while (running.size() < maxConcurrentUploads && !waiting.isEmpty()) {
+            start(waiting.removeFirst());
+        }
+    }
+
+    private void start(UploadJob job) {
+        final Uri uri = Uri.parse(job.uri);
+        final long startedAt = SystemClock.elapsedRealtime();
+        final long resumedFrom = job.uploaded;
+        // Set when the file itself is gone, retrying can't help then
+        final boolean[] sourceGone = {false};
+        Job upload = SupabaseService.INSTANCE.uploadResumable(job.bucket, job.objectName, job.contentType, job.length,
+                job.location, job.contentHash != null, new SupabaseService.UploadSource() {
+                    @Override
+                    public InputStream open() throws IOException {
+                        InputStream in;
+                        try {
+                            in = resolver.openInputStream(uri);
+                        } catch (FileNotFoundException | SecurityException e) {
+                            sourceGone[0] = true;
+                            throw new IOException("Can't open " + uri, e);
+                        }
+                        if (in == null) throw new IOException("Can't open " + uri);
+                        return in;
+                    }
+                }, new SupabaseService.ResumableUploadCallback() {
+                    private int lastPercent = -1;
+
+                    @Override
+                    public void onCheckpoint(String location, long uploaded) {
+                        job.location = location;
+                        job.uploaded = uploaded;
+                        store.uploadProgress(job.id, location, uploaded);
+                    }
+
+                    @Override
+                    public void onProgress(long uploaded, long total) {
+                        int percent = total > 0 ? (int) (uploaded * 100 / total) : 0;
+                        if (percent == lastPercent) return;
+                        lastPercent = percent;
+                        mainHandler.post(() -> {
+                            for (Listener l : listeners) l.onUploadProgress(job.id, job.conversationId, percent);
+                        });
+                    }
+
+                    @Override
+                    public void onComplete(String publicUrl) {
+                        long tookMs = Math.max(1, SystemClock.elapsedRealtime() - startedAt);
+                        long sent = job.length - resumedFrom;
+                        Log.d(TAG, "Uploaded " + job.objectName + ": " + sent + " bytes in " + tookMs + "ms ("
+                                + (sent * 1000 / tookMs / 1024) + " KiB/s, resumed from " + resumedFrom + ")");
+                        finished(job, publicUrl);
+                    }
+
+                    @Override
+                    public void onError(String message, boolean permanent) {
+                        Log.w(TAG, "Upload of " + job.objectName + " stopped at " + job.uploaded + "/" + job.length + ": " + message);
+                        Integer failed = failures.get(job.id);
+                        int attempts = failed != null ? failed + 1 : 1;
+                        failures.put(job.id, attempts);
+                        // Anything kept here holds back every later message of the conversation
+                        if (sourceGone[0]) {
+                            abandon(job, "The file is no longer available");
+                        } else if (permanent) {
+                            abandon(job, message);
+                        } else if (attempts >= MAX_UPLOAD_FAILURES) {
+                            abandon(job, "Upload failed " + attempts + " times: " + message);
+                        } else {
+                            notifyFailed(job, message);
+                        }
+                    }
+                });
+        running.put(job.id, upload);
+        // Also fires right away if the upload already ended
+        upload.invokeOnCompletion(cause -> {
+            synchronized (UploadManager.this) {
+                running.remove(job.id, upload);
+                pump();
+            }
+            return Unit.INSTANCE;
+        });
+    }
+
+    /**
+     * Posts job with the URL from the media index if its content was uploaded before.
+     * Returns false if it has to be uploaded.
+     */
+    private boolean reuseKnown(UploadJob job) {
+        String url = job.contentHash != null ? store.mediaUrl(job.bucket, job.contentHash) : null;
+        if (url == null) return false;
+        Log.d(TAG, "Reusing " + url + " for " + job.id);
+        finished(job, url);
+        return true;
+    }
+
+    private void finished(UploadJob job, String publicUrl) {
+        failures.remove(job.id);
+        if (job.contentHash != null) store.mediaRemember(job.bucket, job.contentHash, publicUrl);
+        uploaded(job, publicUrl);
+        mainHandler.post(() -> {
+            for (Listener l : listeners) l.onUploadFinished(job.id, job.conversationId);
+        });
+    }
+
+    /**
+     * Reserves the message's place in its conversation before anything is known about the file
+     */
+    private UploadJob holdPlace(String id, Conversation conversation) {
+        UploadJob placeholder = new UploadJob();
+        placeholder.id = id;
+        placeholder.conversationId = conversation.getRemoteId();
+        holdPlace(placeholder);
+        return placeholder;
+    }
+
+    private void holdPlace(UploadJob job) {
+        synchronized (postOrder) {
+            TreeMap<String, UploadJob> queue = postOrder.get(String.valueOf(job.conversationId));
+            if (queue == null) {
+                queue = new TreeMap<>();
+                postOrder.put(String.valueOf(job.conversationId), queue);
+            }
+            queue.put(job.id, job);
+        }
+    }
+
+    private boolean isUploaded(String id) {
+        synchronized (postOrder) {
+            return uploadedUrls.containsKey(id);
+        }
+    }
+
+    private void uploaded(UploadJob job, String publicUrl) {
+        synchronized (postOrder) {
+            uploadedUrls.put(job.id, publicUrl);
+            postReady(String.valueOf(job.conversationId));
+        }
+    }
+
+    /**
+     * Gives up on job for good: it won't hold up the messages picked after it any more
+     */
+    private void abandon(UploadJob job, String error) {
+        synchronized (postOrder) {
+            TreeMap<String, UploadJob> queue = postOrder.get(String.valueOf(job.conversationId));
+            if (queue != null) queue.remove(job.id);
+            uploadedUrls.remove(job.id);
+            postReady(String.valueOf(job.conversationId));
+        }
+        failures.remove(job.id);
+        store.uploadRemove(job.id);
+        deleteCompressed(job);
+        notifyFailed(job, error);
+    }
+
+    /**
+     * Posts the uploaded messages at the front of the conversation's queue; one still uploading
+     * (or failed and waiting to resume) holds back everything picked after it. Caller holds postOrder.
+     */
+    private void postReady(String conversationKey) {
+        TreeMap<String, UploadJob> queue = postOrder.get(conversationKey);
+        if (queue == null) return;
+        while (!queue.isEmpty()) {
+            UploadJob first = queue.firstEntry().getValue();
+            String url = uploadedUrls.remove(first.id);
+            if (url == null) return;
+            queue.pollFirstEntry();
+            post(first, url);
+        }
+        postOrder.remove(conversationKey);
+    }
+
+    /**
+     * Queues the message; the outbox persists it, so the job record can go
+     */
+    private void post(UploadJob job, String publicUrl) {
+        MessageDto dto = new MessageDto(job.id, job.senderId, job.senderName, null, job.text,
+                Message.typeName(job.type), publicUrl, job.duration, null, job.conversationId);
+        MessageOutbox outbox = MessageOutbox.getInstance();
+        if (outbox != null) outbox.enqueue(dto);
+        store.uploadRemove(job.id);
+        deleteCompressed(job);
+    }
+
+    /**
+     * Removes the compressed copy of an image, never a file the user picked
+     */
+    private void deleteCompressed(UploadJob job) {
+        if (job.uri == null) return;
+        Uri uri = Uri.parse(job.uri);
+        if (!"file".equals(uri.getScheme()) || uri.getPath() == null) return;
+        File file = new File(uri.getPath());
+        if (compressedDir.equals(file.getParentFile()) && !file.delete()) {
+            Log.w(TAG, "Could not delete " + file);
+        }
+    }
+
+    private void notifyFailed(UploadJob job, String error) {
+        mainHandler.post(() -> {
+            for (Listener l : listeners) l.onUploadFailed(job.id, job.conversationId, error);
+        });
+    }
+
+    /**
+     * Hash and size of the content at uri from one streaming read, null if unreadable
+     */
+    private ContentHash hashOf(Uri uri) {
+        try (InputStream in = resolver.openInputStream(uri)) {
+            if (in == null) return null;
+            return ContentHash.of(in);
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "Can't read " + uri + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private long probeDuration(Uri uri) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try (ParcelFileDescriptor fd = resolver.openFileDescriptor(uri, "r")) {
+            if (fd == null) return 0;
+            retriever.setDataSource(fd.getFileDescriptor());
+            String time = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            return time != null ? Long.parseLong(time) : 0;
+        } catch (Exception e) {
+            Log.w(TAG, "No duration for " + uri + ": " + e.getMessage());
+            return 0;
+        } finally {
+            try {
+                retriever.release();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    private static String extensionOf(String contentType, String fallback) {
+        String ext = contentType != null ? MimeTypeMap.getSingleton().getExtensionFromMimeType(contentType) : null;
+        return ext != null ? ext : fallback;
+    }
+}
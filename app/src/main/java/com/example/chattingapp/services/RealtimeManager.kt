@@ -0,0 +1,525 @@
+package com.example.chattingapp.services
+
+import android.os.SystemClock
+import android.util.Log
+import io.github.jan.supabase.realtime.PostgresAction
+import io.github.jan.supabase.realtime.Realtime
+import io.github.jan.supabase.realtime.RealtimeChannel
+import io.github.jan.supabase.realtime.broadcast
+import io.github.jan.supabase.realtime.broadcastFlow
+import io.github.jan.supabase.realtime.channel
+import io.github.jan.supabase.realtime.decodeRecord
+import io.github.jan.supabase.realtime.postgresChangeFlow
+import io.github.jan.supabase.realtime.realtime
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.contentOrNull
+import kotlinx.serialization.json.jsonPrimitive
+import java.util.Random
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * App-wide owner of the realtime socket. There is exactly one channel per table (or per
+ * conversation, for the shared conversation table) no matter how many screens listen, and every batch of inserts, updates and deletes is fanned out to all
+ * listeners of that table. Typing/presence signals ride the same channel as broadcasts.
+ * The channel is opened with the first listener and closed with the last one.
+ * Deletes on the conversation table can't be filtered by conversation, so they come in on one
+ * shared channel per table, open while any conversation of that table is.
+ *
+ * Dead sockets are caught by the Realtime plugin's heartbeat (status drops to DISCONNECTED) and by
+ * a watchdog running at the heartbeat interval; either way we reconnect with capped exponential
+ * backoff plus jitter and rejoin the channels. All state lives on the single-threaded realtime lane.
+ */
+object RealtimeManager {
+
+    private const val TAG = "RealtimeManager"
+
+    const val STATE_DISCONNECTED = 0
+    const val STATE_CONNECTING = 1
+    const val STATE_CONNECTED = 2
+
+    // Phoenix heartbeat interval handed to the Realtime plugin, the watchdog uses the same period
+    const val HEARTBEAT_INTERVAL_MS = 15_000L
+
+    private const val BASE_BACKOFF_MS = 1000L
+    private const val MAX_BACKOFF_MS = 30_000L
+
+    // Default coalescing window for changes, about one frame
+    const val BATCH_WINDOW_MS = 16L
+
+    // Broadcast event carrying typing/presence signals on the same channel as the row changes
+    private const val SIGNAL_EVENT = "signal"
+    private const val SIGNAL_JOIN_WAIT_MS = 5000L
+
+    interface ConnectionListener {
+        /**
+         * Called on the realtime lane
+         */
+        fun onConnectionStateChanged(state: Int)
+    }
+
+    interface SignalListener {
+        /**
+         * Called on the realtime lane, once per received signal
+         */
+        fun onSignal(signal: SignalDto)
+    }
+
+    private class Topic(val table: String, val conversationId: String?, val sharedDeletes: Boolean = false) {
+        val key = if (sharedDeletes) deletesKey(table) else topicKey(table, conversationId)
+
+        // Listeners get the same batch list, they must not modify it
+        val listeners = CopyOnWriteArrayList<SupabaseService.MessageBatchCallback>()
+        val signalListeners = CopyOnWriteArrayList<SignalListener>()
+        var channel: RealtimeChannel? = null
+        var job: Job? = null
+        // Changes waiting to be batched, the shared delete channel feeds it too
+        var pending: Channel<Change>? = null
+    }
+
+    private val lane get() = SupabaseService.realtimeLane
+
+    private val signalJson = Json { ignoreUnknownKeys = true }
+
+    // Written on the realtime lane only; concurrent so channelCount() can read it from anywhere
+    private val topics = ConcurrentHashMap<String, Topic>()
+    // Realtime lane only
+    private var watchJob: Job? = null
+    private var reconnectJob: Job? = null
+    private var failedAttempts = 0
+    private var disconnectedAt = 0L
+    private var connectedAt = 0L
+    private val random = Random()
+
+    private val connectionListeners = CopyOnWriteArrayList<ConnectionListener>()
+
+    @Volatile
+    var state = STATE_DISCONNECTED
+        private set
+
+    // Metrics
+    private val connects = AtomicInteger()
+    private val drops = AtomicInteger()
+    private val reconnectAttempts = AtomicInteger()
+    private val rowsDelivered = AtomicLong()
+    private val signalsSent = AtomicLong()
+    private val signalsReceived = AtomicLong()
+    private val totalDowntimeMs = AtomicLong()
+    @Volatile
+    private var lastOutageMs = 0L
+
+    /**
+     * Starts delivering changes on table to listener, only for one conversation when conversationId
+     * is set. Adding the same listener twice is a no-op.
+     */
+    fun addMessageListener(table: String, conversationId: String?, listener: SupabaseService.MessageBatchCallback) {
+        lane.scope.launch {
+            val key = topicKey(table, conversationId)
+            val topic = topics.getOrPut(key) { Topic(table, conversationId) }
+            if (!topic.listeners.contains(listener)) topic.listeners.add(listener)
+            if (topic.channel == null) openTopic(topic)
+            startWatching()
+        }
+    }
+
+    fun removeMessageListener(table: String, conversationId: String?, listener: SupabaseService.MessageBatchCallback) {
+        lane.scope.launch {
+            val topic = topics[topicKey(table, conversationId)] ?: return@launch
+            topic.listeners.remove(listener)
+            closeIfUnused(topic)
+        }
+    }
+
+    /**
+     * Starts delivering typing/presence signals sent on table (or one conversation of it).
+     * Shares the channel with the message listeners.
+     */
+    fun addSignalListener(table: String, conversationId: String?, listener: SignalListener) {
+        lane.scope.launch {
+            val key = topicKey(table, conversationId)
+            val topic = topics.getOrPut(key) { Topic(table, conversationId) }
+            if (!topic.signalListeners.contains(listener)) topic.signalListeners.add(listener)
+            if (topic.channel == null) openTopic(topic)
+            startWatching()
+        }
+    }
+
+    fun removeSignalListener(table: String, conversationId: String?, listener: SignalListener) {
+        lane.scope.launch {
+            val topic = topics[topicKey(table, conversationId)] ?: return@launch
+            topic.signalListeners.remove(listener)
+            closeIfUnused(topic)
+        }
+    }
+
+    /**
+     * Broadcasts signal to everyone else on the topic. Fire and forget: waits a little for a
+     * channel that is still joining, otherwise it's dropped and the next signal carries the
+     * full state again. Callers do the rate limiting.
+     */
+    fun sendSignal(table: String, conversationId: String?, signal: SignalDto) {
+        lane.scope.launch {
+            val channel = topics[topicKey(table, conversationId)]?.channel ?: return@launch
+            val joined = withTimeoutOrNull(SIGNAL_JOIN_WAIT_MS) {
+                channel.status.first { it == RealtimeChannel.Status.SUBSCRIBED }
+            }
+            if (joined == null) return@launch
+            try {
+                channel.broadcast(event = SIGNAL_EVENT, message = signal)
+                signalsSent.incrementAndGet()
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Log.w(TAG, "Error sending signal on ${topicKey(table, conversationId)}: ${e.message}")
+            }
+        }
+    }
+
+    private suspend fun closeIfUnused(topic: Topic) {
+        if (topic.listeners.isNotEmpty() || topic.signalListeners.isNotEmpty()) return
+        topics.remove(topic.key)
+        closeTopic(topic)
+        if (topic.conversationId != null && topics.values.none { isConversationTopic(it, topic.table) }) {
+            topics.remove(deletesKey(topic.table))?.let { closeTopic(it) }
+        }
+        if (topics.isEmpty()) stopWatching()
+    }
+
+    /**
+     * Number of open channels, for checking the subscription budget
+     */
+    fun channelCount(): Int = topics.size
+
+    private fun topicKey(table: String, conversationId: String?) =
+        if (conversationId == null) table else "$table:$conversationId"
+
+    private fun deletesKey(table: String) = "$table#deletes"
+
+    private fun isConversationTopic(topic: Topic, table: String) =
+        !topic.sharedDeletes && topic.table == table && topic.conversationId != null
+
+    fun addConnectionListener(listener: ConnectionListener) {
+        if (!connectionListeners.contains(listener)) connectionListeners.add(listener)
+    }
+
+    fun removeConnectionListener(listener: ConnectionListener) {
+        connectionListeners.remove(listener)
+    }
+
+    /**
+     * Skips the backoff, e.g. when the network comes back
+     */
+    fun reconnectNow() {
+        lane.scope.launch {
+            if (topics.isEmpty() || state == STATE_CONNECTED) return@launch
+            reconnectJob?.cancel()
+            reconnectJob = null
+            failedAttempts = 0
+            scheduleReconnect(0)
+        }
+    }
+
+    fun stats(): String {
+        val uptime = if (state == STATE_CONNECTED) SystemClock.elapsedRealtime() - connectedAt else 0
+        return "realtime: state=$state connects=${connects.get()} drops=${drops.get()} " +
+            "reconnectAttempts=${reconnectAttempts.get()} rows=${rowsDelivered.get()} " +
+            "signalsSent=${signalsSent.get()} signalsReceived=${signalsReceived.get()} uptime=${uptime}ms " +
+            "lastOutage=${lastOutageMs}ms totalDowntime=${totalDowntimeMs.get()}ms"
+    }
+
+    private suspend fun openTopic(topic: Topic) {
+        val channel = SupabaseService.client.channel(topic.key)
+        if (topic.sharedDeletes) {
+            collectSharedDeletes(topic, channel)
+        } else {
+            collectChanges(topic, channel)
+            if (topic.conversationId != null) openSharedDeletes(topic.table)
+        }
+        join(topic, channel)
+    }
+
+    private fun collectChanges(topic: Topic, channel: RealtimeChannel) {
+        val changes = channel.postgresChangeFlow<PostgresAction>(schema = "public") {
+            table = topic.table
+            if (topic.conversationId != null) filter = "conversation_id=eq.${topic.conversationId}"
+        }
+        val signals = channel.broadcastFlow<JsonObject>(event = SIGNAL_EVENT)
+        val pending = Channel<Change>(Channel.UNLIMITED)
+        topic.channel = channel
+        topic.pending = pending
+        topic.job = lane.scope.launch {
+            // Signals are tiny and already rate limited by the senders, no batching needed
+            launch {
+                signals.collect {
+                    // Decoded here so one malformed payload can't end the collection
+                    val signal = try {
+                        signalJson.decodeFromJsonElement(SignalDto.serializer(), it)
+                    } catch (e: Exception) {
+                        Log.w(TAG, "Dropping malformed signal on ${topic.key}: ${e.message}")
+                        return@collect
+                    }
+                    signalsReceived.incrementAndGet()
+                    for (listener in topic.signalListeners) listener.onSignal(signal)
+                }
+            }
+            // Decoded once, batched once, then handed to every listener
+            launch {
+                val batch = ArrayList<Change>()
+                for (first in pending) {
+                    batch.add(first)
+                    delay(BATCH_WINDOW_MS)
+                    while (true) {
+                        batch.add(pending.tryReceive().getOrNull() ?: break)
+                    }
+                    deliver(topic, batch)
+                    batch.clear()
+                }
+            }
+            changes.collect {
+                try {
+                    val change = when (it) {
+                        is PostgresAction.Insert -> Change(Change.INSERT, it.decodeRecord<MessageDto>(), null)
+                        is PostgresAction.Update -> Change(Change.UPDATE, it.decodeRecord<MessageDto>(), null)
+                        // Only the primary key is in the old record unless the table has REPLICA IDENTITY FULL.
+                        // Never arrives on a filtered (conversation) subscription, see collectSharedDeletes
+                        is PostgresAction.Delete -> it.oldRecord["id"]?.jsonPrimitive?.contentOrNull
+                            ?.let { id -> Change(Change.DELETE, null, id) }
+                        else -> null
+                    }
+                    if (change != null) pending.send(change)
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Exception) {
+                    Log.e(TAG, "Error decoding ${topic.key} change: ${e.message}")
+                }
+            }
+        }
+    }
+
+    /**
+     * Realtime doesn't deliver DELETEs to filtered subscriptions (the old record only has the
+     * primary key unless the table has REPLICA IDENTITY FULL), so one unfiltered delete channel per
+     * table serves all its conversations. A delete goes to its conversation when the old record
+     * names it, otherwise to every open conversation; listeners only drop ids they hold.
+     */
+    private fun collectSharedDeletes(topic: Topic, channel: RealtimeChannel) {
+        val deletes = channel.postgresChangeFlow<PostgresAction.Delete>(schema = "public") { table = topic.table }
+        topic.channel = channel
+        topic.job = lane.scope.launch {
+            deletes.collect {
+                val id = it.oldRecord["id"]?.jsonPrimitive?.contentOrNull ?: return@collect
+                val conversationId = it.oldRecord["conversation_id"]?.jsonPrimitive?.contentOrNull
+                for (target in topics.values) {
+                    if (!isConversationTopic(target, topic.table)) continue
+                    if (conversationId != null && target.conversationId != conversationId) continue
+                    target.pending?.send(Change(Change.DELETE, null, id))
+                }
+            }
+        }
+    }
+
+    private suspend fun openSharedDeletes(table: String) {
+        val key = deletesKey(table)
+        if (topics.containsKey(key)) return
+        val topic = Topic(table, null, sharedDeletes = true)
+        topics[key] = topic
+        openTopic(topic)
+    }
+
+    private suspend fun join(topic: Topic, channel: RealtimeChannel) {
+        try {
+            val client = SupabaseService.client
+            if (client.realtime.status.value != Realtime.Status.CONNECTED) {
+                client.realtime.connect()
+            }
+            channel.subscribe()
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            // The watchdog reconnects and rejoins, listeners just get told
+            Log.e(TAG, "Error subscribing to ${topic.key}: ${e.message}")
+            for (listener in topic.listeners) listener.onError(e.message ?: "Subscription error")
+        }
+        // The last listener can leave while we were suspended above; closeTopic then only saw
+        // a channel that wasn't joined yet, so leave the one we just joined
+        if (topics[topic.key] !== topic || topic.channel !== channel) {
+            Log.d(TAG, "${topic.key} closed while subscribing, leaving again")
+            leaveChannel(topic.key, channel)
+            return
+        }
+        Log.d(TAG, "Subscribed to ${topic.key}")
+    }
+
+    private class Change(val kind: Int, val row: MessageDto?, val id: String?) {
+        companion object {
+            const val INSERT = 0
+            const val UPDATE = 1
+            const val DELETE = 2
+        }
+    }
+
+    /**
+     * Inserts go out first, then updates and deletes. Within one batch that is the order a row
+     * can go through anyway (inserted, edited, deleted), so nothing is applied out of order.
+     */
+    private fun deliver(topic: Topic, batch: List<Change>) {
+        val inserted = ArrayList<MessageDto>()
+        val updated = ArrayList<MessageDto>()
+        val deleted = ArrayList<String>()
+        for (change in batch) {
+            when (change.kind) {
+                Change.INSERT -> inserted.add(change.row!!)
+                Change.UPDATE -> updated.add(change.row!!)
+                else -> deleted.add(change.id!!)
+            }
+        }
+        rowsDelivered.addAndGet(batch.size.toLong())
+        for (listener in topic.listeners) {
+            if (inserted.isNotEmpty()) listener.onNewMessages(inserted)
+            if (updated.isNotEmpty() || deleted.isNotEmpty()) listener.onMessagesChanged(updated, deleted)
+        }
+    }
+
+    private suspend fun closeTopic(topic: Topic) {
+        topic.job?.cancel()
+        topic.job = null
+        topic.pending = null
+        val channel = topic.channel ?: return
+        topic.channel = null
+        leaveChannel(topic.key, channel)
+    }
+
+    private suspend fun leaveChannel(key: String, channel: RealtimeChannel) {
+        try {
+            channel.unsubscribe()
+            SupabaseService.client.realtime.removeChannel(channel)
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            Log.w(TAG, "Error leaving $key: ${e.message}")
+        }
+    }
+
+    private fun startWatching() {
+        if (watchJob != null) return
+        watchJob = lane.scope.launch {
+            // Follow the socket state the plugin reports
+            launch {
+                SupabaseService.client.realtime.status.collect { onStatus(it) }
+            }
+            // Watchdog: the plugin gives up after a failed reconnect, make sure somebody retries
+            while (isActive) {
+                delay(HEARTBEAT_INTERVAL_MS)
+                if (topics.isNotEmpty() && state != STATE_CONNECTED && reconnectJob == null) {
+                    scheduleReconnect(backoffDelay(++failedAttempts))
+                }
+            }
+        }
+    }
+
+    private fun stopWatching() {
+        watchJob?.cancel()
+        watchJob = null
+        reconnectJob?.cancel()
+        reconnectJob = null
+        failedAttempts = 0
+        lane.scope.launch {
+            try {
+                SupabaseService.client.realtime.disconnect()
+            } catch (e: Exception) {
+                Log.w(TAG, "Error disconnecting: ${e.message}")
+            }
+            setState(STATE_DISCONNECTED)
+        }
+    }
+
+    private suspend fun onStatus(status: Realtime.Status) {
+        when (status) {
+            Realtime.Status.CONNECTED -> {
+                val now = SystemClock.elapsedRealtime()
+                if (disconnectedAt > 0) {
+                    lastOutageMs = now - disconnectedAt
+                    totalDowntimeMs.addAndGet(lastOutageMs)
+                    disconnectedAt = 0
+                }
+                connectedAt = now
+                connects.incrementAndGet()
+                failedAttempts = 0
+                reconnectJob?.cancel()
+                reconnectJob = null
+                rejoinChannels()
+                setState(STATE_CONNECTED)
+            }
+            Realtime.Status.CONNECTING -> setState(STATE_CONNECTING)
+            else -> {
+                if (state == STATE_CONNECTED) drops.incrementAndGet()
+                if (disconnectedAt == 0L) disconnectedAt = SystemClock.elapsedRealtime()
+                setState(STATE_DISCONNECTED)
+                if (topics.isNotEmpty() && reconnectJob == null) {
+                    scheduleReconnect(backoffDelay(++failedAttempts))
+                }
+            }
+        }
+    }
+
+    private suspend fun rejoinChannels() {
+        for (topic in topics.values) {
+            val channel = topic.channel ?: continue
+            if (channel.status.value != RealtimeChannel.Status.UNSUBSCRIBED) continue
+            try {
+                channel.subscribe()
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Log.w(TAG, "Error rejoining ${topic.key}: ${e.message}")
+            }
+        }
+    }
+
+    private fun scheduleReconnect(delayMs: Long) {
+        reconnectJob = lane.scope.launch {
+            delay(delayMs)
+            reconnectAttempts.incrementAndGet()
+            Log.d(TAG, "Reconnecting (attempt $failedAttempts, waited ${delayMs}ms)")
+            try {
+                // Only the wait is cancellable, a connect that has started is left to finish
+                withContext(NonCancellable) { SupabaseService.client.realtime.connect() }
+                reconnectJob = null
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                Log.w(TAG, "Reconnect failed: ${e.message}")
+                reconnectJob = null
+                scheduleReconnect(backoffDelay(++failedAttempts))
+            }
+        }
+    }
+
+    private fun setState(newState: Int) {
+        if (state == newState) return
+        state = newState
+        for (listener in connectionListeners) listener.onConnectionStateChanged(newState)
+    }
+
+    /**
+     * Exponential backoff with "equal jitter": half fixed, half random
+     */
+    private fun backoffDelay(attempt: Int): Long {
+        val exp = minOf(MAX_BACKOFF_MS, BASE_BACKOFF_MS shl minOf(attempt - 1, 16))
+        val half = exp / 2
+        return half + (random.nextDouble() * half).toLong()
+    }
+}
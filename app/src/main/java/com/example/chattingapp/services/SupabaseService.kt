@@ -7,30 +7,71 @@ import io.github.jan.supabase.postgrest.Postgrest
 import io.github.jan.supabase.postgrest.from
 import io.github.jan.supabase.postgrest.query.Order
 import io.github.jan.supabase.realtime.Realtime
-
-import io.github.jan.supabase.realtime.postgresChangeFlow
-import io.github.jan.supabase.realtime.PostgresAction
-import io.github.jan.supabase.realtime.channel
-import io.github.jan.supabase.realtime.decodeRecord
-import io.github.jan.supabase.realtime.realtime
 import io.github.jan.supabase.storage.Storage
 import io.github.jan.supabase.storage.storage
+import io.ktor.client.HttpClient
+import io.ktor.client.engine.cio.CIO
+import io.ktor.client.request.HttpRequestBuilder
+import io.ktor.client.request.head
+import io.ktor.client.request.header
+import io.ktor.client.request.parameter
+import io.ktor.client.request.patch
+import io.ktor.client.request.post
+import io.ktor.client.request.prepareGet
+import io.ktor.client.request.setBody
+import io.ktor.client.statement.bodyAsChannel
+import io.ktor.http.ContentType
+import io.ktor.http.HttpHeaders
+import io.ktor.http.HttpStatusCode
+import io.ktor.http.content.OutgoingContent
+import io.ktor.http.isSuccess
+import io.ktor.utils.io.ByteWriteChannel
+import io.ktor.utils.io.jvm.javaio.toInputStream
 import io.github.jan.supabase.serializer.KotlinXSerializer
-import kotlinx.coroutines.CoroutineScope
+import android.util.Base64
+import android.util.Log
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.Dispatchers
-import kotlinx.coroutines.flow.launchIn
-import kotlinx.coroutines.flow.onEach
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import kotlinx.serialization.ExperimentalSerializationApi
 import kotlinx.serialization.json.Json
+import java.io.IOException
+import java.io.InputStream
 import java.util.Date
+import kotlin.time.Duration.Companion.milliseconds
 import androidx.core.util.Consumer
 
 object SupabaseService {
     // Keys loaded from BuildConfig (local.properties)
     
     lateinit var client: SupabaseClient
-    private val scope = CoroutineScope(Dispatchers.IO)
 
+    // Work is split into lanes so one kind can't starve another, e.g. a multi-megabyte upload
+    // holding up a history page or a send. Sends and uploads also give way to interactive reads
+    // (for a bounded time). All lanes hang off rootJob.
+    private val rootJob = SupervisorJob()
+    // Long-lived realtime collectors; one thread keeps events in order
+    val realtimeLane = WorkLane("realtime", 1, 0, rootJob, 100)
+    // Reads the user is waiting on (history pages, gap fill)
+    val interactiveLane = WorkLane("interactive", 4, 4, rootJob, 250)
+    // Message inserts; the outbox already keeps a single insert in flight
+    // Yields only briefly, a sent message should show up fast too
+    val sendLane = WorkLane("sends", 1, 2, rootJob, 500, interactiveLane, 250)
+    // Bulk storage uploads, capped low so they can't eat the connection pool
+    // (UploadManager runs fewer at once unless asked for more)
+    val uploadLane = WorkLane("uploads", 4, 4, rootJob, 2000, interactiveLane, 2000)
+
+    /**
+     * Queue depth and wait/run times for every lane
+     */
+    fun laneStats(): String =
+        listOf(realtimeLane, interactiveLane, sendLane, uploadLane).joinToString("; ") { it.stats() }
+
+    @OptIn(ExperimentalSerializationApi::class)
     fun init() {
         if (::client.isInitialized) return
         
@@ -39,9 +80,15 @@ object SupabaseService {
             supabaseKey = com.example.chattingapp.BuildConfig.SUPABASE_KEY
         ) {
             install(Postgrest)
-            install(Realtime)
+            install(Realtime) {
+                heartbeatInterval = RealtimeManager.HEARTBEAT_INTERVAL_MS.milliseconds
+            }
             install(Storage)
-            defaultSerializer = KotlinXSerializer(Json { ignoreUnknownKeys = true })
+            defaultSerializer = KotlinXSerializer(Json {
+                ignoreUnknownKeys = true
+                // Null fields are left out, so global_messages never sees a conversation_id column
+                explicitNulls = false
+            })
         }
     }
 
@@ -52,103 +99,374 @@ object SupabaseService {
         fun onNewMessage(message: MessageDto)
     }
 
-    fun fetchGlobalMessages(callback: MessageCallback) {
-        scope.launch {
+    const val PAGE_SIZE = 50
+
+    // History bodies are read straight off the socket, see streamMessagesBefore
+    private val streamingHttpClient by lazy { HttpClient(CIO) }
+
+    interface BodyCallback {
+        /**
+         * Called on an IO thread with the response body (a JSON array) while it is still
+         * downloading. Read it before returning, the stream is closed afterwards.
+         */
+        @Throws(IOException::class)
+        fun onBody(body: InputStream)
+        fun onError(error: String)
+    }
+
+    /**
+     * Keyset pagination over (created_at, id), newest first, in table (limited to one
+     * conversation when conversationId is set).
+     * Pass null cursor values for the latest page, or the created_at/id of the oldest
+     * loaded message to get the page right before it. Rows come back newest -> oldest.
+     * Goes through PostgREST directly instead of the postgrest plugin, which buffers and
+     * decodes the whole body before returning it.
+     */
+    fun streamMessagesBefore(table: String, conversationId: String?, beforeCreatedAt: String?, beforeId: String?, limit: Int, callback: BodyCallback): Job {
+        return interactiveLane.launch {
             try {
-                val results = client.from("global_messages")
-                    .select {
-                        order("created_at", Order.ASCENDING)
-                        limit(50)
+                val key = com.example.chattingapp.BuildConfig.SUPABASE_KEY
+                streamingHttpClient.prepareGet(com.example.chattingapp.BuildConfig.SUPABASE_URL + "/rest/v1/" + table) {
+                    header("apikey", key)
+                    header("Authorization", "Bearer $key")
+                    header("Accept", "application/json")
+                    parameter("select", "*")
+                    if (conversationId != null) {
+                        parameter("conversation_id", "eq.$conversationId")
                     }
-                    .decodeList<MessageDto>()
-                
-                callback.onMessagesReceived(results)
+                    if (beforeCreatedAt != null && beforeId != null) {
+                        parameter("or", "(created_at.lt.\"$beforeCreatedAt\",and(created_at.eq.\"$beforeCreatedAt\",id.lt.\"$beforeId\"))")
+                    }
+                    parameter("order", "created_at.desc,id.desc")
+                    parameter("limit", limit)
+                }.execute { response ->
+                    if (!response.status.isSuccess()) {
+                        throw IOException("HTTP ${response.status.value}")
+                    }
+                    response.bodyAsChannel().toInputStream().use { callback.onBody(it) }
+                }
+            } catch (e: CancellationException) {
+                throw e
             } catch (e: Exception) {
                 callback.onError(e.message ?: "Unknown error")
             }
         }
     }
 
-    fun sendGlobalMessage(senderId: String, senderName: String, senderAvatarUrl: String?, text: String, type: String, fileUrl: String?, duration: Long? = null) {
-        scope.launch {
+    interface SendCallback {
+        fun onSent(messages: List<MessageDto>)
+        fun onError(error: String)
+    }
+
+    /**
+     * Inserts several messages in one request. Ids are generated by the client, so re-sending a
+     * batch after a lost response is harmless: rows that already exist are skipped, then read
+     * back. Every message of the batch comes back through callback, as the server stores it.
+     */
+    fun sendMessages(table: String, messages: List<MessageDto>, callback: SendCallback): Job {
+        return sendLane.launch {
             try {
-                val msg = MessageDto(
-                    sender_id = senderId,
-                    sender_name = senderName,
-                    sender_avatar_url = senderAvatarUrl,
-                    message = text,
-                    type = type,
-                    file_url = fileUrl,
-                    duration = duration
-                )
-                client.from("global_messages").insert(msg)
+                val inserted = client.from(table)
+                    .upsert(messages, onConflict = "id", ignoreDuplicates = true) { select() }
+                    .decodeList<MessageDto>()
+                // The upsert only returns new rows; the others got there on an earlier attempt
+                val insertedIds = inserted.mapTo(HashSet()) { it.id }
+                val existing = messages.mapNotNull { it.id }.filter { it !in insertedIds }
+                val sent = if (existing.isEmpty()) inserted else inserted + client.from(table)
+                    .select { filter { isIn("id", existing) } }
+                    .decodeList<MessageDto>()
+                callback.onSent(sent)
+            } catch (e: CancellationException) {
+                throw e
             } catch (e: Exception) {
-                e.printStackTrace()
+                callback.onError(e.message ?: "Send failed")
             }
         }
     }
 
-    fun subscribeToGlobalMessages(callback: MessageCallback) {
-        scope.launch {
+    /**
+     * Rows newer than the (created_at, id) cursor, oldest first. Used to fill the gap after a reconnect.
+     */
+    fun fetchMessagesAfter(table: String, conversationId: String?, afterCreatedAt: String, afterId: String, limit: Int, callback: MessageCallback): Job {
+        return interactiveLane.launch {
             try {
-                android.util.Log.d("SupabaseService", "Subscribing to global-chat channel")
-                val channel = client.channel("global-chat")
-                val changeFlow = channel.postgresChangeFlow<PostgresAction>(schema = "public") {
-                    table = "global_messages"
-                }
-
-                changeFlow.onEach {
-                    android.util.Log.d("SupabaseService", "Event received: $it")
-                    if (it is PostgresAction.Insert) {
-                         try {
-                             val msg = it.decodeRecord<MessageDto>()
-                             android.util.Log.d("SupabaseService", "New message decoded: $msg")
-                             callback.onNewMessage(msg)
-                         } catch(e: Exception) {
-                             android.util.Log.e("SupabaseService", "Error decoding message: ${e.message}")
-                         }
+                val results = client.from(table)
+                    .select {
+                        filter {
+                            if (conversationId != null) eq("conversation_id", conversationId)
+                            or {
+                                gt("created_at", afterCreatedAt)
+                                and {
+                                    eq("created_at", afterCreatedAt)
+                                    gt("id", afterId)
+                                }
+                            }
+                        }
+                        order("created_at", Order.ASCENDING)
+                        order("id", Order.ASCENDING)
+                        limit(limit.toLong())
                     }
-                }.launchIn(scope)
+                    .decodeList<MessageDto>()
 
-                channel.subscribe()
-                android.util.Log.d("SupabaseService", "Subscribed!")
+                callback.onMessagesReceived(results)
+            } catch (e: CancellationException) {
+                throw e
             } catch (e: Exception) {
-                android.util.Log.e("SupabaseService", "Error in subscription: ${e.message}")
-                callback.onError(e.message ?: "Subscription error")
-            }
-        }
-        
-        // Ensure realtime is connected
-        scope.launch {
-            try {
-                if (client.realtime.status.value != Realtime.Status.CONNECTED) {
-                     client.realtime.connect()
-                }
-            } catch(e: Exception) {
-                android.util.Log.e("SupabaseService", "Error connecting to realtime: ${e.message}")
+                callback.onError(e.message ?: "Unknown error")
             }
         }
     }
 
+    // Realtime changes are delivered in batches instead of one callback per row, see RealtimeManager
+    interface MessageBatchCallback {
+        fun onNewMessages(messages: List<MessageDto>)
+        // Edited rows, and ids of deleted rows; called after onNewMessages for the same batch
+        fun onMessagesChanged(updated: List<MessageDto>, deletedIds: List<String>)
+        fun onError(error: String)
+    }
+
     interface UploadCallback {
         fun onSuccess(publicUrl: String)
         fun onError(message: String)
     }
 
-    fun uploadFile(bucketName: String, fileName: String, data: ByteArray, callback: UploadCallback) {
-        scope.launch {
+    fun uploadFile(bucketName: String, fileName: String, data: ByteArray, callback: UploadCallback): Job {
+        return uploadLane.launch {
             try {
                 // Ensure bucket exists or handled by policy
                 val bucket = client.storage.from(bucketName)
                 bucket.upload(fileName, data, upsert = true)
                 val publicUrl = bucket.publicUrl(fileName)
                 callback.onSuccess(publicUrl)
+            } catch (e: CancellationException) {
+                throw e
             } catch (e: Exception) {
                 callback.onError(e.message ?: "Upload failed")
             }
         }
     }
 
+    // Supabase Storage only accepts resumable uploads in 6 MiB chunks (the last one may be shorter)
+    const val RESUMABLE_CHUNK_SIZE = 6L * 1024 * 1024
+    // Chunks are streamed from the source through this much memory, never held whole
+    private const val UPLOAD_BUFFER_SIZE = 64 * 1024
+    private const val MAX_CHUNK_ATTEMPTS = 5
+
+    /**
+     * The server refused the upload for good (too large, type not allowed, no permission...),
+     * retrying the same request can't succeed
+     */
+    class UploadRejectedException(message: String) : IOException(message)
+
+    // 4xx is the request's fault and final, except timeouts, conflicts, locks and rate limits
+    private fun isRejection(status: HttpStatusCode): Boolean =
+        status.value in 400..499 && status.value != 408 && status.value != 409 && status.value != 423 && status.value != 429
+
+    interface UploadSource {
+        /**
+         * A fresh stream over the whole file, positioned at the start
+         */
+        @Throws(IOException::class)
+        fun open(): InputStream
+    }
+
+    interface ResumableUploadCallback {
+        /**
+         * The server has everything up to uploaded; persist location and uploaded to resume from there
+         */
+        fun onCheckpoint(location: String, uploaded: Long)
+        /**
+         * Bytes written so far, called for every buffer written (cheap, throttle before touching the UI)
+         */
+        fun onProgress(uploaded: Long, total: Long)
+        fun onComplete(publicUrl: String)
+        /**
+         * permanent: the server rejected the upload itself, resuming it later won't help
+         */
+        fun onError(message: String, permanent: Boolean)
+    }
+
+    /**
+     * Uploads length bytes from source with the tus protocol Supabase Storage speaks, chunk by
+     * chunk, reading from the source while sending. Pass the location of an earlier attempt to
+     * continue where the server left off (a location the server no longer knows starts over).
+     * A failed chunk is retried from the server's offset with backoff; after that the upload
+     * fails and can be resumed later with the last checkpoint. A rejection (see
+     * [UploadRejectedException]) fails it right away as permanent.
+     * With reuseExisting (object names derived from the content), an object already stored under
+     * objectName completes the upload right away without sending anything, and is never overwritten.
+     */
+    fun uploadResumable(bucketName: String, objectName: String, contentType: String?, length: Long,
+                        location: String?, reuseExisting: Boolean, source: UploadSource,
+                        callback: ResumableUploadCallback): Job {
+        return uploadLane.launch {
+            try {
+                if (reuseExisting && location == null) {
+                    val publicUrl = client.storage.from(bucketName).publicUrl(objectName)
+                    if (objectExists(publicUrl)) {
+                        Log.d("SupabaseService", "$objectName already in $bucketName, skipping upload")
+                        callback.onComplete(publicUrl)
+                        return@launch
+                    }
+                }
+                var offset = if (location != null) tusOffset(location) else -1L
+                val url = if (location != null && offset >= 0) location else {
+                    offset = 0
+                    val created = tusCreate(bucketName, objectName, contentType, length, !reuseExisting)
+                    if (created == null) {
+                        // Stored in the meantime (or the HEAD missed it), same name means same bytes
+                        Log.d("SupabaseService", "$objectName already in $bucketName, skipping upload")
+                        callback.onComplete(client.storage.from(bucketName).publicUrl(objectName))
+                        return@launch
+                    }
+                    created.also { callback.onCheckpoint(it, 0) }
+                }
+                val buffer = ByteArray(UPLOAD_BUFFER_SIZE)
+                var input: InputStream? = null
+                var attempts = 0
+                try {
+                    while (offset < length) {
+                        try {
+                            val stream = input ?: source.open().also {
+                                input = it
+                                skipFully(it, offset)
+                            }
+                            // Let a history page the user is waiting on go first
+                            uploadLane.awaitTurn()
+                            val size = minOf(RESUMABLE_CHUNK_SIZE, length - offset)
+                            val chunkStart = offset
+                            offset = tusPatch(url, offset, size, stream, buffer) { sent ->
+                                callback.onProgress(chunkStart + sent, length)
+                            }
+                            attempts = 0
+                            callback.onCheckpoint(url, offset)
+                        } catch (e: CancellationException) {
+                            throw e
+                        } catch (e: Exception) {
+                            if (e is UploadRejectedException || ++attempts >= MAX_CHUNK_ATTEMPTS) throw e
+                            Log.w("SupabaseService", "Chunk at $offset of $objectName failed (attempt $attempts): ${e.message}")
+                            // Where the source stream stands is unknown now, reopen it at the server's offset
+                            input?.close()
+                            input = null
+                            delay(1000L shl attempts)
+                            offset = tusOffset(url)
+                            if (offset < 0) throw IOException("Upload expired on the server")
+                        }
+                    }
+                } finally {
+                    input?.close()
+                }
+                callback.onComplete(client.storage.from(bucketName).publicUrl(objectName))
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                callback.onError(e.message ?: "Upload failed", e is UploadRejectedException)
+            }
+        }
+    }
+
+    private fun HttpRequestBuilder.tusHeaders() {
+        val key = com.example.chattingapp.BuildConfig.SUPABASE_KEY
+        header("apikey", key)
+        header("Authorization", "Bearer $key")
+        header("Tus-Resumable", "1.0.0")
+    }
+
+    /**
+     * Returns the upload's location, or null without upsert when objectName is already stored
+     */
+    private suspend fun tusCreate(bucketName: String, objectName: String, contentType: String?, length: Long,
+                                  upsert: Boolean): String? {
+        val metadata = listOfNotNull(
+            "bucketName" to bucketName,
+            "objectName" to objectName,
+            contentType?.let { "contentType" to it }
+        ).joinToString(",") { (k, v) -> k + " " + Base64.encodeToString(v.toByteArray(), Base64.NO_WRAP) }
+        val response = streamingHttpClient.post(com.example.chattingapp.BuildConfig.SUPABASE_URL + "/storage/v1/upload/resumable") {
+            tusHeaders()
+            header("Upload-Length", length)
+            header("Upload-Metadata", metadata)
+            header("x-upsert", upsert.toString())
+        }
+        if (!upsert && response.status == HttpStatusCode.Conflict) return null
+        if (response.status != HttpStatusCode.Created) {
+            if (isRejection(response.status)) throw UploadRejectedException("Upload rejected: ${response.status}")
+            throw IOException("Could not create upload: ${response.status}")
+        }
+        val location = response.headers[HttpHeaders.Location] ?: throw IOException("Upload created without a location")
+        return if (location.startsWith("http")) location else com.example.chattingapp.BuildConfig.SUPABASE_URL + location
+    }
+
+    /**
+     * HEAD on the public URL: headers only, nothing downloaded. A failed check counts as missing,
+     * the upload then just goes ahead.
+     */
+    private suspend fun objectExists(publicUrl: String): Boolean {
+        return try {
+            streamingHttpClient.head(publicUrl).status == HttpStatusCode.OK
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            false
+        }
+    }
+
+    /**
+     * Bytes the server has for the upload, -1 if it doesn't know the upload (expired or never created)
+     */
+    private suspend fun tusOffset(url: String): Long {
+        val response = streamingHttpClient.head(url) { tusHeaders() }
+        if (response.status == HttpStatusCode.NotFound || response.status == HttpStatusCode.Gone
+            || response.status == HttpStatusCode.Forbidden) return -1
+        if (!response.status.isSuccess()) throw IOException("Could not get upload offset: ${response.status}")
+        return response.headers["Upload-Offset"]?.toLongOrNull() ?: throw IOException("No upload offset")
+    }
+
+    /**
+     * Sends size bytes read straight from input as one chunk, returns the server's new offset
+     */
+    private suspend fun tusPatch(url: String, offset: Long, size: Long, input: InputStream, buffer: ByteArray,
+                                 onSent: (Long) -> Unit): Long {
+        val body = object : OutgoingContent.WriteChannelContent() {
+            override val contentLength = size
+            override val contentType = ContentType("application", "offset+octet-stream")
+
+            override suspend fun writeTo(channel: ByteWriteChannel) {
+                var sent = 0L
+                while (sent < size) {
+                    val want = minOf(buffer.size.toLong(), size - sent).toInt()
+                    val n = withContext(Dispatchers.IO) { input.read(buffer, 0, want) }
+                    if (n < 0) throw IOException("Source ended at ${offset + sent}, expected ${offset + size}")
+                    channel.writeFully(buffer, 0, n)
+                    sent += n
+                    onSent(sent)
+                }
+            }
+        }
+        val response = streamingHttpClient.patch(url) {
+            tusHeaders()
+            header("Upload-Offset", offset)
+            setBody(body)
+        }
+        if (isRejection(response.status)) throw UploadRejectedException("Chunk at $offset rejected: ${response.status}")
+        if (!response.status.isSuccess()) throw IOException("Chunk at $offset failed: ${response.status}")
+        return response.headers["Upload-Offset"]?.toLongOrNull() ?: (offset + size)
+    }
+
+    private fun skipFully(input: InputStream, count: Long) {
+        var left = count
+        while (left > 0) {
+            val skipped = input.skip(left)
+            if (skipped > 0) {
+                left -= skipped
+            } else if (input.read() < 0) {
+                throw IOException("Source is shorter than the uploaded part")
+            } else {
+                left--
+            }
+        }
+    }
+
     fun readBytes(inputStream: java.io.InputStream?): ByteArray {
         if (inputStream == null) return ByteArray(0)
         return inputStream.readBytes()
@@ -165,7 +483,22 @@ data class MessageDto(
     val type: String = "text",
     val file_url: String? = null,
     val duration: Long? = null,
-    val created_at: String? = null
+    val created_at: String? = null,
+    // Room or direct conversation the message belongs to, null for the global chat
+    val conversation_id: String? = null
 )
 
 
+/**
+ * Ephemeral typing/presence state, sent as a realtime broadcast (never stored).
+ * Each signal carries the sender's whole state, so a newer one simply replaces an older one.
+ */
+@kotlinx.serialization.Serializable
+data class SignalDto(
+    val user_id: String,
+    val user_name: String? = null,
+    // "typing", "online" or "offline"
+    val state: String,
+    // How long the state holds without a refresh
+    val ttl_ms: Long? = null
+)
@@ -0,0 +1,134 @@
+package com.example.chattingapp.services
+
+import android.os.SystemClock
+import android.util.Log
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancelChildren
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.update
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * One class of network work (realtime, interactive reads, sends, uploads) with its own
+ * bounded dispatcher and an optional cap on requests in flight, so a slow lane (a big upload)
+ * can't hold threads or connections that another lane (loading history) needs.
+ * A lane can also yield to a more important one: its requests don't start while [yieldTo] has
+ * work queued or running, for at most maxYieldMs each, so it is slowed down but never starved.
+ * Every lane is a child of [parent]: cancel one lane with [cancelAll], or everything through the parent.
+ * Keeps queue depth and wait/run times, see [stats].
+ */
+@OptIn(ExperimentalCoroutinesApi::class)
+class WorkLane(
+    val name: String,
+    parallelism: Int,
+    maxInFlight: Int,
+    parent: Job,
+    private val slowWaitMs: Long,
+    private val yieldTo: WorkLane? = null,
+    private val maxYieldMs: Long = 0
+) {
+    private val permits = if (maxInFlight > 0) Semaphore(maxInFlight) else null
+
+    val scope = CoroutineScope(SupervisorJob(parent) + Dispatchers.IO.limitedParallelism(parallelism))
+
+    private val queued = AtomicInteger()
+    private val running = AtomicInteger()
+    private val completed = AtomicLong()
+    private val totalWaitMs = AtomicLong()
+    private val totalRunMs = AtomicLong()
+    private val maxWaitMs = AtomicLong()
+    private val totalYieldMs = AtomicLong()
+    // Queued + running, lanes yielding to this one wait for it to reach 0
+    private val active = MutableStateFlow(0)
+
+    /**
+     * Runs block once a slot is free. Cancel the returned job to drop the request, queued or running.
+     */
+    fun launch(block: suspend CoroutineScope.() -> Unit): Job {
+        val enqueuedAt = SystemClock.elapsedRealtime()
+        queued.incrementAndGet()
+        active.update { it + 1 }
+        // ATOMIC: the body always starts, so the finally block below keeps the counters right
+        // even for a job cancelled before it was dispatched
+        return scope.launch(start = CoroutineStart.ATOMIC) {
+            var startedAt = -1L
+            try {
+                awaitTurn()
+                if (permits != null) {
+                    permits.withPermit {
+                        startedAt = begin(enqueuedAt)
+                        block()
+                    }
+                } else {
+                    startedAt = begin(enqueuedAt)
+                    block()
+                }
+            } finally {
+                if (startedAt >= 0) {
+                    running.decrementAndGet()
+                    completed.incrementAndGet()
+                    totalRunMs.addAndGet(SystemClock.elapsedRealtime() - startedAt)
+                } else {
+                    // Cancelled while still waiting for a slot
+                    queued.decrementAndGet()
+                }
+                active.update { it - 1 }
+            }
+        }
+    }
+
+    /**
+     * Waits while [yieldTo] is busy, up to maxYieldMs. launch calls it before every request; long
+     * requests (an upload's chunks) call it between steps so they pause for interactive work too.
+     */
+    suspend fun awaitTurn() {
+        val higher = yieldTo ?: return
+        if (higher.active.value == 0) return
+        val startedAt = SystemClock.elapsedRealtime()
+        withTimeoutOrNull(maxYieldMs) { higher.active.first { it == 0 } }
+        totalYieldMs.addAndGet(SystemClock.elapsedRealtime() - startedAt)
+    }
+
+    private fun begin(enqueuedAt: Long): Long {
+        val now = SystemClock.elapsedRealtime()
+        val waitMs = now - enqueuedAt
+        queued.decrementAndGet()
+        running.incrementAndGet()
+        totalWaitMs.addAndGet(waitMs)
+        maxWaitMs.accumulateAndGet(waitMs) { a, b -> maxOf(a, b) }
+        if (waitMs > slowWaitMs) {
+            Log.w("WorkLane", "$name waited ${waitMs}ms for a slot (${stats()})")
+        }
+        return now
+    }
+
+    /**
+     * Cancels everything queued or running in this lane, the lane stays usable
+     */
+    fun cancelAll() {
+        scope.coroutineContext.cancelChildren()
+    }
+
+    fun queueDepth(): Int = queued.get()
+
+    fun inFlight(): Int = running.get()
+
+    fun stats(): String {
+        val done = completed.get()
+        val avgWait = if (done > 0) totalWaitMs.get() / done else 0
+        val avgRun = if (done > 0) totalRunMs.get() / done else 0
+        return "$name: queued=${queued.get()} running=${running.get()} done=$done " +
+            "avgWait=${avgWait}ms maxWait=${maxWaitMs.get()}ms avgRun=${avgRun}ms yielded=${totalYieldMs.get()}ms"
+    }
+}
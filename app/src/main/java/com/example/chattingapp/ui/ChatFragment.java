@@ -2,11 +2,14 @@ package com.example.chattingapp.ui;
 
 import android.Manifest;
 import android.app.Activity;
+import android.content.ClipData;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.MediaStore;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -17,30 +20,51 @@ import androidx.annotation.NonNull;
 import androidx.core.content.ContextCompat;
 import androidx.fragment.app.Fragment;
 import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import com.example.chattingapp.R;
 import com.example.chattingapp.adapter.ChatAdapter;
 import com.example.chattingapp.databinding.FragmentChatBinding;
+import com.example.chattingapp.model.Conversation;
 import com.example.chattingapp.model.Message;
+import com.example.chattingapp.model.MessageWindow;
 import com.example.chattingapp.repository.ChatRepository;
+import com.example.chattingapp.repository.ConversationManager;
+import com.example.chattingapp.repository.PresenceRepository;
 import com.example.chattingapp.repository.StorageRepository;
-import com.example.chattingapp.utils.MediaValidator;
+import com.example.chattingapp.repository.UploadManager;
 import com.example.chattingapp.utils.NetworkHelper;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.UUID;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import com.example.chattingapp.utils.UserManager;
 
 public class ChatFragment extends Fragment implements ChatRepository.ChatCallback {
 
+    // Start loading older history when this many rows are left above the first visible one
+    private static final int PREFETCH_DISTANCE = 15;
+
+    // Optional arguments; without either one the fragment shows the global chat
+    public static final String ARG_ROOM_ID = "room_id";
+    public static final String ARG_PEER_ID = "peer_id";
+    public static final String ARG_TITLE = "title";
+
     private FragmentChatBinding binding;
     private ChatAdapter adapter;
+    private Conversation conversation;
     private ChatRepository chatRepository;
+    private PresenceRepository presenceRepository;
     private StorageRepository storageRepository;
     private UserManager userManager;
     
     private String currentUserId;
     private String currentUserName;
 
+    // Uploads started from this screen -> percent done
+    private final Map<String, Integer> uploadProgress = new LinkedHashMap<>();
+
     private ActivityResultLauncher<Intent> imagePickerLauncher;
     private ActivityResultLauncher<Intent> audioPickerLauncher;
 
@@ -56,7 +80,9 @@ public class ChatFragment extends Fragment implements ChatRepository.ChatCallbac
             currentUserName = "Anonymous";
         }
         
-        chatRepository = new ChatRepository();
+        conversation = conversationFromArguments();
+        chatRepository = new ChatRepository(conversation);
+        presenceRepository = new PresenceRepository(conversation, currentUserId, currentUserName);
         storageRepository = new StorageRepository();
         
         // Image picker result
@@ -64,9 +90,19 @@ public class ChatFragment extends Fragment implements ChatRepository.ChatCallbac
             new ActivityResultContracts.StartActivityForResult(),
             result -> {
                 if (result.getResultCode() == Activity.RESULT_OK && result.getData() != null) {
-                    Uri imageUri = result.getData().getData();
-                    if (imageUri != null) {
-                        handleImageSelected(imageUri);
+                    List<Uri> imageUris = new ArrayList<>();
+                    ClipData clip = result.getData().getClipData();
+                    if (clip != null) {
+                        // Several picked, in the order the picker reports them
+                        for (int i = 0; i < clip.getItemCount(); i++) {
+                            Uri uri = clip.getItemAt(i).getUri();
+                            if (uri != null) imageUris.add(uri);
+                        }
+                    } else if (result.getData().getData() != null) {
+                        imageUris.add(result.getData().getData());
+                    }
+                    if (!imageUris.isEmpty()) {
+                        handleImagesSelected(imageUris);
                     }
                 }
             }
@@ -94,14 +130,34 @@ public class ChatFragment extends Fragment implements ChatRepository.ChatCallbac
         setupRecyclerView();
         setupInputBar();
         setupNetworkListener();
+        if (UploadManager.getInstance() != null) UploadManager.getInstance().addListener(uploadListener);
         
         chatRepository.init(this);
-        chatRepository.loadGlobalMessages();
+        // Paint what was on screen last time right away, the load below diffs against it
+        ConversationManager conversations = ConversationManager.getInstance();
+        MessageWindow saved = conversations != null ? conversations.getSavedWindow(conversation) : null;
+        if (saved != null) {
+            adapter.restoreWindow(saved, () -> {
+                if (binding == null) return;
+                updateEmptyState();
+                scrollToBottom();
+            });
+        }
+        if (conversations != null) conversations.open(conversation);
+        chatRepository.loadMessages();
         chatRepository.subscribeToRealtime();
+        presenceRepository.init(this::showPresence);
 
         return root;
     }
 
+    @Override
+    public void onStart() {
+        super.onStart();
+        // Present (and able to show typing) only while the chat is visible
+        presenceRepository.start();
+    }
+
     @Override
     public void onResume() {
         super.onResume();
@@ -109,15 +165,47 @@ public class ChatFragment extends Fragment implements ChatRepository.ChatCallbac
         String updatedName = userManager.getUserName();
         if (updatedName != null && !updatedName.isEmpty()) {
             currentUserName = updatedName;
+            presenceRepository.setUserName(updatedName);
         }
     }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        presenceRepository.stop();
+    }
     
+    private Conversation conversationFromArguments() {
+        Bundle args = getArguments();
+        if (args == null) return Conversation.global();
+        String title = args.getString(ARG_TITLE);
+        if (args.getString(ARG_ROOM_ID) != null) {
+            return Conversation.room(args.getString(ARG_ROOM_ID), title);
+        }
+        if (args.getString(ARG_PEER_ID) != null && currentUserId != null) {
+            return Conversation.direct(currentUserId, args.getString(ARG_PEER_ID), title);
+        }
+        return Conversation.global();
+    }
+
     private void setupRecyclerView() {
         adapter = new ChatAdapter();
         LinearLayoutManager layoutManager = new LinearLayoutManager(getContext());
         layoutManager.setStackFromEnd(true);
         binding.recyclerViewChat.setLayoutManager(layoutManager);
         binding.recyclerViewChat.setAdapter(adapter);
+        adapter.setOnRetryListener(this::retrySend);
+
+        // Infinite scroll-back: fetch the previous page as the top comes near
+        binding.recyclerViewChat.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (dy >= 0 || !chatRepository.hasMoreHistory()) return;
+                if (layoutManager.findFirstVisibleItemPosition() <= PREFETCH_DISTANCE) {
+                    chatRepository.loadOlderMessages();
+                }
+            }
+        });
     }
     
     private void setupInputBar() {
@@ -129,6 +217,20 @@ public class ChatFragment extends Fragment implements ChatRepository.ChatCallbac
             }
         });
         
+        // Each edit only stamps a time, PresenceRepository decides when a signal actually goes out
+        binding.editMessage.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+                if (s.length() > 0) presenceRepository.onUserTyping();
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {}
+        });
+
         binding.btnImage.setOnClickListener(v -> {
             openImagePicker();
         });
@@ -138,105 +240,131 @@ public class ChatFragment extends Fragment implements ChatRepository.ChatCallbac
         });
     }
     
+    private final NetworkHelper.NetworkCallback networkCallback = isConnected -> {
+        if (getActivity() != null) {
+            getActivity().runOnUiThread(() -> {
+                // Update connection UI status if needed
+            });
+        }
+    };
+
     private void setupNetworkListener() {
-        NetworkHelper.getInstance().setNetworkCallback(isConnected -> {
-            if (getActivity() != null) {
-                getActivity().runOnUiThread(() -> {
-                    // Update connection UI status if needed
-                });
-            }
-        });
+        NetworkHelper.getInstance().addNetworkCallback(networkCallback);
     }
     
     private void sendTextMessage(String text) {
-        // Optimistic update not needed for global chat usually, but good for UX.
-        // However, since we listen to realtime, we might get duplicate if we add locally too unless we check IDs.
-        // For simplicity, let's wait for realtime echo or add locally and dedupe?
-        // Simplest: Send to backend, backend triggers realtime, we show it. 
-        // To avoid lag, we can add locally as "Sending..." but simpler here:
-        
-        // Since we don't have a backend Profile User table link yet, we are not sending avatar URL here explicitly unless we store it in prefs.
-        // But requested output logic needs it.
-        // For now, let's assume no URL is sent, so default avatar drawable will be used by receivers.
-        // If we want persistence, we'd need to upload profile image to storage and save URL in prefs.
-        chatRepository.sendGlobalMessage(currentUserId, currentUserName, null, text, "text", null, 0);
+        // Shown right away as pending; the insert response or realtime echo reconciles it by id.
+        // Since we don't have a backend Profile User table link yet, no avatar URL is sent,
+        // so the default avatar drawable will be used by receivers.
+        showPending(chatRepository.sendMessage(currentUserId, currentUserName, null, text, Message.TYPE_TEXT, null, 0));
+        presenceRepository.onMessageSent();
+    }
+
+    private void showPresence(List<String> typingNames, int onlineCount) {
+        if (binding == null) return;
+        String text;
+        if (typingNames.size() == 1) {
+            text = getString(R.string.typing_one, typingNames.get(0));
+        } else if (typingNames.size() == 2) {
+            text = getString(R.string.typing_two, typingNames.get(0), typingNames.get(1));
+        } else if (typingNames.size() > 2) {
+            text = getString(R.string.typing_many, typingNames.size());
+        } else if (onlineCount > 0) {
+            text = getString(R.string.presence_online, onlineCount);
+        } else {
+            text = null;
+        }
+        binding.textTyping.setText(text);
+        binding.textTyping.setVisibility(text != null ? View.VISIBLE : View.GONE);
+    }
+
+    private void showPending(Message pending) {
+        adapter.addMessage(pending, () -> {
+            if (binding == null) return;
+            updateEmptyState();
+            scrollToBottom();
+        });
+    }
+
+    private void retrySend(Message failed) {
+        adapter.updateStatus(failed.getId(), Message.STATUS_PENDING);
+        chatRepository.retrySend(failed);
     }
     
     private void openImagePicker() {
         Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
         intent.setType("image/*");
+        intent.putExtra(Intent.EXTRA_MIME_TYPES, new String[]{"image/jpeg", "image/png"});
+        intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
         intent.addCategory(Intent.CATEGORY_OPENABLE);
-        imagePickerLauncher.launch(Intent.createChooser(intent, "Select Image"));
+        imagePickerLauncher.launch(Intent.createChooser(intent, "Select Images"));
     }
 
     private void openAudioPicker() {
-        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        // OPEN_DOCUMENT grants access that can be kept, so an interrupted upload can resume after a restart
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
         intent.setType("audio/*");
         intent.addCategory(Intent.CATEGORY_OPENABLE);
         audioPickerLauncher.launch(Intent.createChooser(intent, "Select Audio"));
     }
 
     private void handleAudioSelected(Uri audioUri) {
-         try {
-            long durationMillis = 0;
-            try {
-                // Get duration
-                android.media.MediaMetadataRetriever retriever = new android.media.MediaMetadataRetriever();
-                retriever.setDataSource(getContext(), audioUri);
-                String time = retriever.extractMetadata(android.media.MediaMetadataRetriever.METADATA_KEY_DURATION);
-                if (time != null) {
-                    durationMillis = Long.parseLong(time);
-                }
-                retriever.release();
-            } catch (Exception e) {
-                e.printStackTrace(); // Log but don't stop upload
-            }
-            
-            final long finalDuration = durationMillis;
-
-            // read bytes
-            java.io.InputStream iStream = requireContext().getContentResolver().openInputStream(audioUri);
-            byte[] inputData = com.example.chattingapp.services.SupabaseService.INSTANCE.readBytes(iStream);
-            
-            String fileName = "audio_" + UUID.randomUUID().toString() + ".mp3";
-            Toast.makeText(getContext(), "Uploading audio... (" + (finalDuration/1000) + "s)", Toast.LENGTH_SHORT).show();
-            
-            storageRepository.uploadAudio(inputData, fileName, new StorageRepository.UploadCallback() {
-                @Override
-                public void onSuccess(String fileUrl) {
-                    if (getActivity() != null) {
-                        getActivity().runOnUiThread(() -> {
-                            chatRepository.sendGlobalMessage(currentUserId, currentUserName, null, "Sent an audio message", "audio", fileUrl, finalDuration);
-                            Toast.makeText(getContext(), "Audio sent!", Toast.LENGTH_SHORT).show();
-                        });
-                    }
-                }
+        // Metadata, reading and uploading all happen off the main thread, in resumable chunks
+        UploadManager uploads = UploadManager.getInstance();
+        if (uploads == null) {
+            Toast.makeText(getContext(), "Upload failed: storage not ready", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        uploadProgress.put(uploads.sendAudio(audioUri, conversation, currentUserId, currentUserName), 0);
+        showUploadProgress();
+    }
 
-                @Override
-                public void onError(Exception e) {
-                     if (getActivity() != null) {
-                        getActivity().runOnUiThread(() -> {
-                            Toast.makeText(getContext(), "Upload failed: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-                        });
-                    }
-                }
-            });
-            
-         } catch(Exception e) {
-             e.printStackTrace();
-             Toast.makeText(getContext(), "Failed to read file", Toast.LENGTH_SHORT).show();
-         }
+    private final UploadManager.Listener uploadListener = new UploadManager.Listener() {
+        @Override
+        public void onUploadProgress(String jobId, String conversationId, int percent) {
+            if (!uploadProgress.containsKey(jobId)) return;
+            uploadProgress.put(jobId, percent);
+            showUploadProgress();
+        }
+
+        @Override
+        public void onUploadFinished(String jobId, String conversationId) {
+            // The message itself arrives through the outbox like any other send
+            if (uploadProgress.remove(jobId) != null) showUploadProgress();
+        }
+
+        @Override
+        public void onUploadFailed(String jobId, String conversationId, String error) {
+            if (uploadProgress.remove(jobId) == null) return;
+            showUploadProgress();
+            Toast.makeText(getContext(), "Upload failed: " + error, Toast.LENGTH_SHORT).show();
+        }
+    };
+
+    private void showUploadProgress() {
+        if (binding == null) return;
+        if (uploadProgress.isEmpty()) {
+            binding.uploadProgress.setVisibility(View.GONE);
+            return;
+        }
+        int total = 0;
+        for (int percent : uploadProgress.values()) total += percent;
+        binding.uploadProgress.setProgress(total / uploadProgress.size());
+        binding.uploadProgress.setVisibility(View.VISIBLE);
     }
     
-    private void handleImageSelected(Uri imageUri) {
-        String mimeType = getContext().getContentResolver().getType(imageUri);
-        if (!MediaValidator.isAllowed(mimeType)) {
-            Toast.makeText(getContext(), MediaValidator.getBlockedMessage(mimeType), Toast.LENGTH_LONG).show();
+    private void handleImagesSelected(List<Uri> imageUris) {
+        // Type checks, compression and uploads all happen off the main thread; the messages
+        // are posted in the order picked, whichever upload finishes first
+        UploadManager uploads = UploadManager.getInstance();
+        if (uploads == null) {
+            Toast.makeText(getContext(), "Upload failed: storage not ready", Toast.LENGTH_SHORT).show();
             return;
         }
-        
-        // TODO: Implement Storage Upload then send message
-        Toast.makeText(getContext(), "Image upload coming soon!", Toast.LENGTH_SHORT).show();
+        for (String jobId : uploads.sendImages(imageUris, conversation, currentUserId, currentUserName)) {
+            uploadProgress.put(jobId, 0);
+        }
+        showUploadProgress();
     }
     
     private void scrollToBottom() {
@@ -255,12 +383,30 @@ public class ChatFragment extends Fragment implements ChatRepository.ChatCallbac
         }
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        chatRepository.release();
+    }
+
     @Override
     public void onDestroyView() {
         super.onDestroyView();
         if (adapter != null) {
-            adapter.releaseAudio();
+            // Audio keeps playing across view recreation, only free it when the screen is going away for good
+            if (getActivity() != null && getActivity().isFinishing()) {
+                adapter.releaseAudio();
+            }
         }
+        NetworkHelper.getInstance().removeNetworkCallback(networkCallback);
+        if (UploadManager.getInstance() != null) UploadManager.getInstance().removeListener(uploadListener);
+        ConversationManager conversations = ConversationManager.getInstance();
+        if (conversations != null) {
+            conversations.saveWindow(conversation, adapter.getWindow());
+            conversations.close(conversation);
+        }
+        // Detaches the adapter so it drops its playback listener and view references
+        binding.recyclerViewChat.setAdapter(null);
         binding = null;
     }
 
@@ -269,21 +415,73 @@ public class ChatFragment extends Fragment implements ChatRepository.ChatCallbac
     @Override
     public void onMessagesReceived(java.util.List<Message> messages) {
         // Flag messages as sent by me based on ID
+        java.util.Set<String> ids = new java.util.HashSet<>();
         for (Message m : messages) {
             m.setSentByMe(currentUserId.equals(m.getSenderId()));
+            if (m.getId() != null) ids.add(m.getId());
+        }
+
+        // Keep our own unconfirmed messages at the bottom across history reloads
+        java.util.List<Message> merged = new ArrayList<>(messages);
+        for (Message unsent : adapter.getUnsentMessages()) {
+            if (!ids.contains(unsent.getId())) merged.add(unsent);
         }
         
-        adapter.setMessages(messages);
-        updateEmptyState();
-        scrollToBottom();
+        adapter.setMessages(merged, () -> {
+            if (binding == null) return;
+            updateEmptyState();
+            scrollToBottom();
+        });
     }
 
     @Override
-    public void onNewMessage(Message message) {
-        message.setSentByMe(currentUserId.equals(message.getSenderId()));
-        adapter.addMessage(message);
-        updateEmptyState();
-        scrollToBottom();
+    public void onOlderMessagesReceived(java.util.List<Message> messages, boolean hasMore) {
+        if (messages.isEmpty()) return;
+        for (Message m : messages) {
+            m.setSentByMe(currentUserId.equals(m.getSenderId()));
+        }
+        adapter.prependMessages(messages, null);
+    }
+
+    @Override
+    public void onNewMessages(java.util.List<Message> messages) {
+        // One list update and one scroll per realtime batch
+        for (Message m : messages) {
+            m.setSentByMe(currentUserId.equals(m.getSenderId()));
+        }
+        // Echoes of our optimistic sends replace the pending rows in place
+        adapter.upsertMessages(messages, () -> {
+            if (binding == null) return;
+            updateEmptyState();
+            scrollToBottom();
+        });
+    }
+
+    @Override
+    public void onMessagesChanged(java.util.List<Message> updated, java.util.List<String> deletedIds) {
+        for (Message m : updated) {
+            m.setSentByMe(currentUserId.equals(m.getSenderId()));
+        }
+        adapter.updateMessages(updated, deletedIds, () -> {
+            if (binding == null) return;
+            updateEmptyState();
+        });
+    }
+
+    @Override
+    public void onMessagesSent(java.util.List<Message> messages) {
+        for (Message m : messages) {
+            m.setSentByMe(true);
+        }
+        adapter.upsertMessages(messages, null);
+    }
+
+    @Override
+    public void onMessagesFailed(java.util.List<String> messageIds, String error) {
+        // Still queued in the outbox and retried automatically, the row just shows it can be retried
+        for (String id : messageIds) {
+            adapter.updateStatus(id, Message.STATUS_FAILED);
+        }
     }
 
     @Override
@@ -16,6 +16,7 @@ import androidx.fragment.app.Fragment;
 import com.bumptech.glide.Glide;
 import com.example.chattingapp.R;
 import com.example.chattingapp.databinding.FragmentProfileBinding;
+import com.example.chattingapp.utils.AvatarDrawable;
 import com.example.chattingapp.utils.MediaValidator;
 
 public class ProfileFragment extends Fragment {
@@ -23,6 +24,8 @@ public class ProfileFragment extends Fragment {
     private FragmentProfileBinding binding;
     private ActivityResultLauncher<Intent> imagePickerLauncher;
     private Uri selectedImageUri;
+    // Reused for every keystroke, only the initial changes
+    private final AvatarDrawable nameAvatar = new AvatarDrawable("?");
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -76,7 +79,7 @@ public class ProfileFragment extends Fragment {
             @Override
             public void onTextChanged(CharSequence s, int start, int before, int count) {
                 if (selectedImageUri == null) {
-                    binding.profileImage.setImageDrawable(new com.example.chattingapp.utils.AvatarDrawable(s.toString()));
+                    showNameAvatar(s.toString());
                 }
             }
 
@@ -104,14 +107,21 @@ public class ProfileFragment extends Fragment {
         if (savedName != null && !savedName.isEmpty()) {
             binding.editName.setText(savedName);
             if (selectedImageUri == null) {
-                binding.profileImage.setImageDrawable(new com.example.chattingapp.utils.AvatarDrawable(savedName));
+                showNameAvatar(savedName);
             }
         } else {
              if (selectedImageUri == null) {
-                binding.profileImage.setImageDrawable(new com.example.chattingapp.utils.AvatarDrawable("?"));
+                showNameAvatar("?");
             }
         }
     }
+
+    private void showNameAvatar(String name) {
+        nameAvatar.setText(name);
+        if (binding.profileImage.getDrawable() != nameAvatar) {
+            binding.profileImage.setImageDrawable(nameAvatar);
+        }
+    }
     
     private void openImagePicker() {
         Intent intent = new Intent(Intent.ACTION_PICK, MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
@@ -0,0 +1,200 @@
+package com.example.chattingapp.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaMetadataRetriever;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves the duration of remote audio files.
+ * Probes run on a small bounded pool, concurrent requests for the same URL share one probe,
+ * and results are kept in an in-memory LRU backed by SharedPreferences.
+ * Writes to the preferences are batched, and once they hold more than MAX_STORED durations they
+ * are cut down to the ones in the memory cache (the recently used ones).
+ */
+public class AudioDurationResolver {
+
+    private static final String TAG = "AudioDurationResolver";
+    private static final String PREF_NAME = "AudioDurations";
+    private static final int MAX_WORKERS = 2;
+    private static final int MEMORY_CACHE_SIZE = 256;
+    private static final int MAX_STORED = 1000;
+    // Each apply() rewrites the whole file, so new durations are saved together
+    private static final long SAVE_DELAY_MS = 2000;
+
+    private static AudioDurationResolver instance;
+
+    public interface Callback {
+        void onDurationResolved(long durationMs);
+    }
+
+    /**
+     * Handle for a pending request, cancel it when the view it was for gets recycled
+     */
+    public final class Request {
+        private final String url;
+        private final Callback callback;
+        private boolean cancelled = false;
+
+        private Request(String url, Callback callback) {
+            this.url = url;
+            this.callback = callback;
+        }
+
+        public void cancel() {
+            if (cancelled) return;
+            cancelled = true;
+            removeRequest(this);
+        }
+    }
+
+    private final LruCache<String, Long> memoryCache = new LruCache<>(MEMORY_CACHE_SIZE);
+    private final Map<String, List<Request>> waiting = new HashMap<>();
+    private final Map<String, Future<?>> inFlight = new HashMap<>();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Main thread: resolved but not saved yet, and the entries in prefs (-1 until counted)
+    private final Map<String, Long> unsaved = new HashMap<>();
+    private final Runnable save = this::save;
+    private int storedCount = -1;
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            MAX_WORKERS, MAX_WORKERS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+    private SharedPreferences prefs;
+
+    private AudioDurationResolver() {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized AudioDurationResolver getInstance() {
+        if (instance == null) {
+            instance = new AudioDurationResolver();
+        }
+        return instance;
+    }
+
+    public void init(Context context) {
+        prefs = context.getApplicationContext().getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the cached duration or -1 if it is not known yet. Main thread only.
+     */
+    public long getCached(String url) {
+        Long cached = memoryCache.get(url);
+        if (cached != null) return cached;
+        if (prefs != null) {
+            long stored = prefs.getLong(url, -1);
+            if (stored > 0) {
+                memoryCache.put(url, stored);
+                return stored;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Requests the duration of url. The callback runs on the main thread, possibly right away
+     * when the value is cached, and is never called after the returned request is cancelled.
+     * Main thread only.
+     */
+    public Request resolve(String url, Callback callback) {
+        Request request = new Request(url, callback);
+        long cached = getCached(url);
+        if (cached > 0) {
+            callback.onDurationResolved(cached);
+            return request;
+        }
+
+        List<Request> requests = waiting.get(url);
+        if (requests == null) {
+            requests = new ArrayList<>();
+            waiting.put(url, requests);
+        }
+        requests.add(request);
+
+        if (!inFlight.containsKey(url)) {
+            inFlight.put(url, executor.submit(() -> probe(url)));
+        }
+        return request;
+    }
+
+    private void removeRequest(Request request) {
+        List<Request> requests = waiting.get(request.url);
+        if (requests == null) return;
+        requests.remove(request);
+        if (requests.isEmpty()) {
+            waiting.remove(request.url);
+            // Nobody is waiting anymore, drop the probe if it hasn't started yet
+            Future<?> future = inFlight.remove(request.url);
+            if (future != null) future.cancel(false);
+        }
+    }
+
+    private void probe(String url) {
+        long durationMs = -1;
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(url, new HashMap<>());
+            String time = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            if (time != null) {
+                durationMs = Long.parseLong(time);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Can't probe " + url, e);
+        } finally {
+            try {
+                retriever.release();
+            } catch (Exception ignored) {}
+        }
+
+        final long result = durationMs;
+        mainHandler.post(() -> deliver(url, result));
+    }
+
+    private void deliver(String url, long durationMs) {
+        inFlight.remove(url);
+        List<Request> requests = waiting.remove(url);
+        if (durationMs <= 0) return;
+        memoryCache.put(url, durationMs);
+        if (prefs != null) {
+            unsaved.put(url, durationMs);
+            if (unsaved.size() == 1) mainHandler.postDelayed(save, SAVE_DELAY_MS);
+        }
+        if (requests == null) return;
+        for (Request request : requests) {
+            if (!request.cancelled) {
+                request.callback.onDurationResolved(durationMs);
+            }
+        }
+    }
+
+    private void save() {
+        if (prefs == null || unsaved.isEmpty()) return;
+        if (storedCount < 0) storedCount = prefs.getAll().size();
+        SharedPreferences.Editor editor = prefs.edit();
+        if (storedCount + unsaved.size() > MAX_STORED) {
+            // Keep what was used lately, anything else is probed again if it shows up
+            Map<String, Long> keep = memoryCache.snapshot();
+            keep.putAll(unsaved);
+            editor.clear();
+            for (Map.Entry<String, Long> entry : keep.entrySet()) editor.putLong(entry.getKey(), entry.getValue());
+            storedCount = keep.size();
+        } else {
+            for (Map.Entry<String, Long> entry : unsaved.entrySet()) editor.putLong(entry.getKey(), entry.getValue());
+            storedCount += unsaved.size();
+        }
+        unsaved.clear();
+        editor.apply();
+    }
+}
@@ -0,0 +1,276 @@
+package com.example.chattingapp.utils;
+
+import android.media.AudioAttributes;
+import android.media.MediaPlayer;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * App-wide audio playback for chat messages.
+ * Owns the MediaPlayer instances (one playing, one preparing the next clip ahead of time)
+ * and reuses them with reset() instead of creating a new player per clip.
+ * Views never get referenced here, the adapter observes state through {@link Listener}.
+ * All methods must be called on the main thread.
+ */
+public class AudioPlaybackEngine {
+
+    private static final String TAG = "AudioPlaybackEngine";
+
+    public static final int STATE_IDLE = 0;
+    public static final int STATE_PREPARING = 1;
+    public static final int STATE_PLAYING = 2;
+    public static final int STATE_PAUSED = 3;
+
+    private static final AudioAttributes AUDIO_ATTRIBUTES = new AudioAttributes.Builder()
+            .setUsage(AudioAttributes.USAGE_MEDIA)
+            .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+            .build();
+
+    private static AudioPlaybackEngine instance;
+
+    public interface Listener {
+        /**
+         * Called when the clip at url changes state, url is empty when playback was stopped
+         */
+        void onPlaybackStateChanged(String url, int state);
+    }
+
+    private final List<Listener> listeners = new ArrayList<>();
+
+    private MediaPlayer player;
+    private String currentUrl = "";
+    private int state = STATE_IDLE;
+
+    // Second player used to prepare the next clip while the current one plays
+    private MediaPlayer preloadPlayer;
+    private String preloadUrl = "";
+    private boolean preloadReady = false;
+
+    private long playRequestedAt;
+    private long lastStartLatencyMs = -1;
+
+    private AudioPlaybackEngine() {}
+
+    public static synchronized AudioPlaybackEngine getInstance() {
+        if (instance == null) {
+            instance = new AudioPlaybackEngine();
+        }
+        return instance;
+    }
+
+    public void addListener(Listener listener) {
+        if (!listeners.contains(listener)) listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public String getCurrentUrl() {
+        return currentUrl;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public boolean isCurrent(String url) {
+        return url != null && url.equals(currentUrl);
+    }
+
+    public boolean isPlaying() {
+        return state == STATE_PLAYING;
+    }
+
+    public int getCurrentPosition() {
+        if (player == null || (state != STATE_PLAYING && state != STATE_PAUSED)) return 0;
+        return player.getCurrentPosition();
+    }
+
+    public int getDuration() {
+        if (player == null || (state != STATE_PLAYING && state != STATE_PAUSED)) return 0;
+        return player.getDuration();
+    }
+
+    /**
+     * Time between the last play request and audio actually starting, -1 if not measured yet
+     */
+    public long getLastStartLatencyMs() {
+        return lastStartLatencyMs;
+    }
+
+    /**
+     * Plays url, or pauses/resumes it if it is already the current clip
+     */
+    public void toggle(String url) {
+        if (url == null) return;
+        if (isCurrent(url)) {
+            if (state == STATE_PLAYING) {
+                player.pause();
+                setState(STATE_PAUSED);
+            } else if (state == STATE_PAUSED) {
+                player.start();
+                setState(STATE_PLAYING);
+            }
+            return;
+        }
+        play(url);
+    }
+
+    public void play(String url) {
+        playRequestedAt = SystemClock.elapsedRealtime();
+        currentUrl = url;
+
+        if (url.equals(preloadUrl) && preloadPlayer != null) {
+            // Swap the prepared player in, the old one becomes the preload slot
+            MediaPlayer previous = player;
+            player = preloadPlayer;
+            preloadPlayer = previous;
+            if (preloadPlayer != null) preloadPlayer.reset();
+            boolean ready = preloadReady;
+            clearPreload();
+            attachPlaybackListeners(player);
+            if (ready) {
+                startPrepared(true);
+            } else {
+                setState(STATE_PREPARING);
+            }
+            return;
+        }
+
+        if (player == null) {
+            player = createPlayer();
+        } else {
+            player.reset();
+        }
+        attachPlaybackListeners(player);
+        try {
+            setSource(player, url);
+            setState(STATE_PREPARING);
+            player.prepareAsync();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to play " + url, e);
+            stop();
+        }
+    }
+
+    /**
+     * Prepares url on the spare player so a later play(url) can start without buffering
+     */
+    public void preload(String url) {
+        if (url == null || url.isEmpty() || isCurrent(url) || url.equals(preloadUrl)) return;
+        if (preloadPlayer == null) {
+            preloadPlayer = createPlayer();
+        } else {
+            preloadPlayer.reset();
+        }
+        preloadUrl = url;
+        preloadReady = false;
+        final MediaPlayer target = preloadPlayer;
+        // If play() swaps this player in before it is ready, the playback listeners replace these
+        target.setOnPreparedListener(mp -> {
+            if (url.equals(preloadUrl)) preloadReady = true;
+        });
+        target.setOnErrorListener((mp, what, extra) -> {
+            if (url.equals(preloadUrl)) clearPreload();
+            return true;
+        });
+        try {
+            setSource(target, url);
+            target.prepareAsync();
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to preload " + url, e);
+            clearPreload();
+        }
+    }
+
+    public void seekTo(int positionMs) {
+        if (player != null && (state == STATE_PLAYING || state == STATE_PAUSED)) {
+            player.seekTo(positionMs);
+        }
+    }
+
+    /**
+     * Stops the current clip but keeps the players around for reuse
+     */
+    public void stop() {
+        if (player != null) {
+            player.reset();
+        }
+        String stopped = currentUrl;
+        currentUrl = "";
+        state = STATE_IDLE;
+        notifyListeners(stopped, STATE_IDLE);
+    }
+
+    /**
+     * Releases both players, call when the app no longer needs audio
+     */
+    public void release() {
+        stop();
+        if (player != null) {
+            player.release();
+            player = null;
+        }
+        if (preloadPlayer != null) {
+            preloadPlayer.release();
+            preloadPlayer = null;
+        }
+        clearPreload();
+    }
+
+    private MediaPlayer createPlayer() {
+        return new MediaPlayer();
+    }
+
+    private void setSource(MediaPlayer mp, String url) throws java.io.IOException {
+        // reset() clears the attributes, so they are applied for every clip
+        mp.setAudioAttributes(AUDIO_ATTRIBUTES);
+        mp.setDataSource(url);
+    }
+
+    private void attachPlaybackListeners(MediaPlayer mp) {
+        mp.setOnPreparedListener(prepared -> {
+            if (prepared == player) startPrepared(false);
+        });
+        mp.setOnErrorListener((errored, what, extra) -> {
+            if (errored == player) {
+                Log.e(TAG, "Playback error " + what + "/" + extra + " for " + currentUrl);
+                stop();
+            }
+            return true; // Error handled
+        });
+        mp.setOnCompletionListener(completed -> {
+            if (completed != player) return;
+            completed.seekTo(0);
+            completed.pause();
+            setState(STATE_PAUSED);
+        });
+    }
+
+    private void startPrepared(boolean preloaded) {
+        player.start();
+        lastStartLatencyMs = SystemClock.elapsedRealtime() - playRequestedAt;
+        Log.d(TAG, "Time to first audio: " + lastStartLatencyMs + "ms (preloaded=" + preloaded + ")");
+        setState(STATE_PLAYING);
+    }
+
+    private void clearPreload() {
+        preloadUrl = "";
+        preloadReady = false;
+    }
+
+    private void setState(int newState) {
+        state = newState;
+        notifyListeners(currentUrl, newState);
+    }
+
+    private void notifyListeners(String url, int newState) {
+        for (Listener listener : new ArrayList<>(listeners)) {
+            listener.onPlaybackStateChanged(url, newState);
+        }
+    }
+}
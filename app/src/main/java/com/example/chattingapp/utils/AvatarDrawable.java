@@ -1,67 +1,68 @@
 package com.example.chattingapp.utils;
 
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
-import android.graphics.Color;
 import android.graphics.ColorFilter;
 import android.graphics.Paint;
 import android.graphics.PixelFormat;
 import android.graphics.Rect;
-import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+/**
+ * Circle with the sender's initial. The pixels come from the shared {@link AvatarProvider} cache,
+ * so keep one instance per view and call {@link #setText(String)} when rebinding it.
+ */
 public class AvatarDrawable extends Drawable {
 
-    private final Paint paintCircle;
-    private final Paint paintText;
-    private final String text;
-    private final Rect textBounds;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private char initial;
+    private int color = AvatarProvider.DEFAULT_COLOR;
 
     public AvatarDrawable(String text) {
-        this.text = text != null && !text.isEmpty() ? text.substring(0, 1).toUpperCase() : "?";
-        this.textBounds = new Rect();
+        this.initial = AvatarProvider.initialOf(text);
+    }
 
-        paintCircle = new Paint(Paint.ANTI_ALIAS_FLAG);
-        paintCircle.setColor(Color.parseColor("#6200EE")); // Default Purple
-        paintCircle.setStyle(Paint.Style.FILL);
+    /**
+     * Switches to another name's initial, redraws only if it actually changed
+     */
+    public void setText(String text) {
+        char newInitial = AvatarProvider.initialOf(text);
+        if (newInitial != initial) {
+            initial = newInitial;
+            invalidateSelf();
+        }
+    }
 
-        paintText = new Paint(Paint.ANTI_ALIAS_FLAG);
-        paintText.setColor(Color.WHITE);
-        paintText.setTextAlign(Paint.Align.CENTER);
-        paintText.setTypeface(Typeface.create(Typeface.DEFAULT, Typeface.BOLD));
+    public void setColor(int color) {
+        if (this.color != color) {
+            this.color = color;
+            invalidateSelf();
+        }
     }
 
     @Override
     public void draw(@NonNull Canvas canvas) {
         Rect bounds = getBounds();
-        float radius = Math.min(bounds.width(), bounds.height()) / 2f;
-        float centerX = bounds.centerX();
-        float centerY = bounds.centerY();
-
-        // Draw Circle
-        canvas.drawCircle(centerX, centerY, radius, paintCircle);
+        int size = Math.min(bounds.width(), bounds.height());
+        if (size <= 0) return;
 
-        // Draw Text
-        paintText.setTextSize(radius); // Text size relative to radius
-        paintText.getTextBounds(text, 0, text.length(), textBounds);
-        
-        // Vertically center text
-        float textY = centerY - textBounds.exactCenterY();
-        canvas.drawText(text, centerX, textY, paintText);
+        Bitmap bitmap = AvatarProvider.getInstance().getBitmap(initial, color, size);
+        float left = bounds.left + (bounds.width() - size) / 2f;
+        float top = bounds.top + (bounds.height() - size) / 2f;
+        canvas.drawBitmap(bitmap, left, top, paint);
     }
 
     @Override
     public void setAlpha(int alpha) {
-        paintCircle.setAlpha(alpha);
-        paintText.setAlpha(alpha);
+        paint.setAlpha(alpha);
     }
 
     @Override
     public void setColorFilter(@Nullable ColorFilter colorFilter) {
-        paintCircle.setColorFilter(colorFilter);
-        paintText.setColorFilter(colorFilter);
+        paint.setColorFilter(colorFilter);
     }
 
     @Override
@@ -0,0 +1,114 @@
+package com.example.chattingapp.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.Typeface;
+import android.util.LongSparseArray;
+
+/**
+ * Memoizing renderer for initial avatars, used by {@link AvatarDrawable}.
+ * Initials are rendered once per (initial, color, pixel size) with shared Paints into a small
+ * LRU bitmap cache, so drawing the same sender again allocates nothing. Main thread only.
+ */
+public class AvatarProvider {
+
+    public static final int DEFAULT_COLOR = Color.parseColor("#6200EE"); // Default Purple
+
+    // Roughly 2 MB of 32dp avatars at xxhdpi, plenty for a screen of senders
+    private static final int CACHE_SIZE_BYTES = 2 * 1024 * 1024;
+
+    private static AvatarProvider instance;
+
+    private final Paint paintCircle = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint paintText = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Rect textBounds = new Rect();
+
+    private static final class Entry {
+        final Bitmap bitmap;
+        long lastUsed;
+
+        Entry(Bitmap bitmap) {
+            this.bitmap = bitmap;
+        }
+    }
+
+    // Keyed by a packed primitive so a cache hit doesn't box anything
+    private final LongSparseArray<Entry> bitmaps = new LongSparseArray<>();
+    private long useCounter = 0;
+    private int totalBytes = 0;
+
+    private AvatarProvider() {
+        paintCircle.setStyle(Paint.Style.FILL);
+        paintText.setColor(Color.WHITE);
+        paintText.setTextAlign(Paint.Align.CENTER);
+        paintText.setTypeface(Typeface.create(Typeface.DEFAULT, Typeface.BOLD));
+    }
+
+    public static synchronized AvatarProvider getInstance() {
+        if (instance == null) {
+            instance = new AvatarProvider();
+        }
+        return instance;
+    }
+
+    public Bitmap getBitmap(char initial, int color, int sizePx) {
+        int size = Math.max(sizePx, 1);
+        // initial (16 bits) | size (16 bits) | color (32 bits) packed into one key
+        long key = ((long) initial << 48) | ((long) (size & 0xFFFF) << 32) | (color & 0xFFFFFFFFL);
+
+        Entry cached = bitmaps.get(key);
+        if (cached != null) {
+            cached.lastUsed = ++useCounter;
+            return cached.bitmap;
+        }
+
+        Entry entry = new Entry(render(initial, color, size));
+        entry.lastUsed = ++useCounter;
+        bitmaps.put(key, entry);
+        totalBytes += entry.bitmap.getByteCount();
+        trimToSize();
+        return entry.bitmap;
+    }
+
+    public void clear() {
+        bitmaps.clear();
+        totalBytes = 0;
+    }
+
+    private void trimToSize() {
+        // Evict least recently used bitmaps, always keeping the newest one
+        while (totalBytes > CACHE_SIZE_BYTES && bitmaps.size() > 1) {
+            int oldest = 0;
+            for (int i = 1; i < bitmaps.size(); i++) {
+                if (bitmaps.valueAt(i).lastUsed < bitmaps.valueAt(oldest).lastUsed) oldest = i;
+            }
+            totalBytes -= bitmaps.valueAt(oldest).bitmap.getByteCount();
+            // Not recycled: a drawable may still be showing it until its next draw
+            bitmaps.removeAt(oldest);
+        }
+    }
+
+    static char initialOf(String name) {
+        if (name == null || name.isEmpty()) return '?';
+        return Character.toUpperCase(name.charAt(0));
+    }
+
+    private Bitmap render(char initial, int color, int size) {
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        float radius = size / 2f;
+
+        paintCircle.setColor(color);
+        canvas.drawCircle(radius, radius, radius, paintCircle);
+
+        String text = String.valueOf(initial);
+        paintText.setTextSize(radius); // Text size relative to radius
+        paintText.getTextBounds(text, 0, 1, textBounds);
+        // Vertically center text
+        canvas.drawText(text, radius, radius - textBounds.exactCenterY(), paintText);
+        return bitmap;
+    }
+}
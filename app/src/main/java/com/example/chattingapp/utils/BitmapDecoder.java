@@ -0,0 +1,230 @@
+package com.example.chattingapp.utils;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decodes images within a memory budget, never at full resolution unless that fits.
+ * Bounds are read first; the decode then uses the largest power-of-two sample size that still
+ * covers the size asked for, RGB_565 for opaque images before giving up more resolution, and a
+ * hardware bitmap when the result is only displayed. Huge images are decoded strip by strip with
+ * {@link BitmapRegionDecoder}, so the full image never has to be held. Bitmaps come from and
+ * should go back to the {@link BitmapPool}. Slow, call off the main thread.
+ */
+public class BitmapDecoder {
+
+    private static final String TAG = "BitmapDecoder";
+
+    /** The bitmap will be encoded or drawn into: software, mutable, pooled */
+    public static final int PURPOSE_ENCODE = 0;
+    /** The bitmap will only be displayed: hardware where available, which keeps it off the Java heap */
+    public static final int PURPOSE_DISPLAY = 1;
+
+    // Above this many source pixels, decode in strips instead of in one go
+    private static final long REGION_DECODE_PIXELS = 50_000_000L;
+    // Memory for one decoded strip
+    private static final int STRIP_BYTES = 2 * 1024 * 1024;
+    private static final long MAX_BUDGET_BYTES = 32L * 1024 * 1024;
+
+    private static final Paint FILTER_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    public interface Source {
+        /**
+         * A fresh stream from the start of the image; it's opened more than once
+         */
+        InputStream open() throws IOException;
+    }
+
+    public static Source fromUri(ContentResolver resolver, Uri uri) {
+        return () -> {
+            InputStream in = resolver.openInputStream(uri);
+            if (in == null) throw new IOException("Can't open " + uri);
+            return in;
+        };
+    }
+
+    public static Source fromFile(String path) {
+        return () -> new FileInputStream(path);
+    }
+
+    /**
+     * Bitmap memory one decode may use: an eighth of the heap, at most 32 MB
+     */
+    public static long defaultBudget() {
+        return Math.min(Runtime.getRuntime().maxMemory() / 8, MAX_BUDGET_BYTES);
+    }
+
+    private BitmapDecoder() {}
+
+    /**
+     * Decodes source so its long side is at least maxDimension (when the image is that big and the
+     * budget allows), using at most budgetBytes of bitmap memory. Returns null if it isn't an image.
+     */
+    public static Bitmap decode(Source source, int maxDimension, long budgetBytes, int purpose) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        try (InputStream in = source.open()) {
+            BitmapFactory.decodeStream(in, null, bounds);
+        }
+        int width = bounds.outWidth;
+        int height = bounds.outHeight;
+        if (width <= 0 || height <= 0) return null;
+
+        int rotation = "image/jpeg".equals(bounds.outMimeType) ? readRotation(source) : 0;
+        // Rotating needs a second bitmap of the same size for a moment
+        long decodeBudget = rotation != 0 ? budgetBytes / 2 : budgetBytes;
+        boolean regions = (long) width * height > REGION_DECODE_PIXELS;
+        if (regions) decodeBudget -= STRIP_BYTES;
+
+        boolean opaque = "image/jpeg".equals(bounds.outMimeType) || "image/heif".equals(bounds.outMimeType);
+        Bitmap.Config config = Bitmap.Config.ARGB_8888;
+        int sample = 1;
+        while (Math.max(width, height) / (sample * 2) >= maxDimension) sample *= 2;
+        while (bytesFor(width, height, sample, config) > decodeBudget) {
+            // Half the bytes without losing pixels: better than another halving of the resolution
+            if (opaque && purpose == PURPOSE_ENCODE && config == Bitmap.Config.ARGB_8888) {
+                config = Bitmap.Config.RGB_565;
+            } else {
+                sample *= 2;
+            }
+        }
+        if (purpose == PURPOSE_DISPLAY && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && !regions && rotation == 0) {
+            config = Bitmap.Config.HARDWARE;
+        }
+
+        Bitmap bitmap = regions
+                ? decodeStrips(source, width, height, sample, config)
+                : decodeWhole(source, width, height, sample, config);
+        if (bitmap == null) return null;
+        Log.d(TAG, width + "x" + height + " " + bounds.outMimeType + " -> " + bitmap.getWidth() + "x"
+                + bitmap.getHeight() + " " + config + " (sample " + sample + (regions ? ", strips" : "") + ")");
+        return rotation != 0 ? rotate(bitmap, rotation) : bitmap;
+    }
+
+    private static long bytesFor(int width, int height, int sample, Bitmap.Config config) {
+        long w = (width + sample - 1) / sample;
+        long h = (height + sample - 1) / sample;
+        return w * h * BitmapPool.bytesPerPixel(config);
+    }
+
+    private static Bitmap decodeWhole(Source source, int width, int height, int sample, Bitmap.Config config) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sample;
+        options.inPreferredConfig = config;
+        boolean software = Build.VERSION.SDK_INT < Build.VERSION_CODES.O || config != Bitmap.Config.HARDWARE;
+        if (software) {
+            options.inMutable = true;
+            options.inBitmap = BitmapPool.getInstance().getReusable(bytesFor(width, height, sample, config));
+        }
+        try (InputStream in = source.open()) {
+            Bitmap bitmap = BitmapFactory.decodeStream(in, null, options);
+            if (bitmap == null) BitmapPool.getInstance().put(options.inBitmap);
+            return bitmap;
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap didn't suit this decoder after all
+            if (options.inBitmap == null) throw e;
+            BitmapPool.getInstance().put(options.inBitmap);
+            options.inBitmap = null;
+            try (InputStream in = source.open()) {
+                return BitmapFactory.decodeStream(in, null, options);
+            }
+        }
+    }
+
+    /**
+     * Decodes full-width strips at the sample size and draws them into the result, so only the
+     * result and one strip are ever in memory
+     */
+    @SuppressWarnings("deprecation")
+    private static Bitmap decodeStrips(Source source, int width, int height, int sample, Bitmap.Config config) throws IOException {
+        int outWidth = (width + sample - 1) / sample;
+        int outHeight = (height + sample - 1) / sample;
+        int bytesPerRow = outWidth * BitmapPool.bytesPerPixel(config);
+        // Source rows per strip, a multiple of the sample size so strips line up in the result
+        int stripRows = Math.max(1, STRIP_BYTES / bytesPerRow) * sample;
+
+        BitmapPool pool = BitmapPool.getInstance();
+        Bitmap result = pool.getOrCreate(outWidth, outHeight, config);
+        Canvas canvas = new Canvas(result);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sample;
+        options.inPreferredConfig = config;
+        options.inMutable = true;
+
+        Bitmap strip = null;
+        try (InputStream in = source.open()) {
+            BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(in, false);
+            try {
+                Rect region = new Rect();
+                Rect from = new Rect();
+                Rect to = new Rect();
+                for (int top = 0; top < height; top += stripRows) {
+                    region.set(0, top, width, Math.min(height, top + stripRows));
+                    options.inBitmap = strip;
+                    strip = decoder.decodeRegion(region, options);
+                    if (strip == null) {
+                        pool.put(result);
+                        return null;
+                    }
+                    // A reused strip can be taller than the last region, only draw what was decoded
+                    int rows = Math.min(strip.getHeight(), (region.height() + sample - 1) / sample);
+                    from.set(0, 0, Math.min(strip.getWidth(), outWidth), rows);
+                    to.set(0, top / sample, from.right, top / sample + rows);
+                    canvas.drawBitmap(strip, from, to, null);
+                }
+            } finally {
+                decoder.recycle();
+            }
+        } catch (IOException | RuntimeException e) {
+            pool.put(result);
+            throw e;
+        } finally {
+            pool.put(strip);
+        }
+        return result;
+    }
+
+    private static int readRotation(Source source) {
+        try (InputStream in = source.open()) {
+            int orientation = new ExifInterface(in).getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+            switch (orientation) {
+                case ExifInterface.ORIENTATION_ROTATE_90: return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180: return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270: return 270;
+                default: return 0;
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static Bitmap rotate(Bitmap bitmap, int degrees) {
+        boolean swap = degrees == 90 || degrees == 270;
+        int width = swap ? bitmap.getHeight() : bitmap.getWidth();
+        int height = swap ? bitmap.getWidth() : bitmap.getHeight();
+        Bitmap.Config config = bitmap.getConfig() != null ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap rotated = BitmapPool.getInstance().getOrCreate(width, height, config);
+        Matrix matrix = new Matrix();
+        matrix.postRotate(degrees);
+        // Rotation moves the image out of the positive quadrant, move it back
+        matrix.postTranslate(degrees == 270 ? 0 : width, degrees == 90 ? 0 : height);
+        new Canvas(rotated).drawBitmap(bitmap, matrix, FILTER_PAINT);
+        BitmapPool.getInstance().put(bitmap);
+        return rotated;
+    }
+}
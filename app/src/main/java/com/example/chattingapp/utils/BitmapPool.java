@@ -0,0 +1,142 @@
+package com.example.chattingapp.utils;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Mutable bitmaps kept for reuse by decodes (as inBitmap) and scaling, so processing a batch of
+ * images doesn't allocate (and garbage collect) a large bitmap per step.
+ * Bounded by total bytes, the least recently returned bitmap is recycled first.
+ * Thread safe.
+ */
+public class BitmapPool {
+
+    private static final String TAG = "BitmapPool";
+
+    // A pooled bitmap may be at most this many times bigger than the request, or it's a waste
+    private static final int MAX_OVERSIZE = 4;
+
+    private static BitmapPool instance;
+
+    private final long maxBytes;
+    private long currentBytes = 0;
+    // Oldest first
+    private final LinkedList<Bitmap> bitmaps = new LinkedList<>();
+
+    private int hits = 0;
+    private int misses = 0;
+    private int evictions = 0;
+
+    public BitmapPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static synchronized BitmapPool getInstance() {
+        if (instance == null) {
+            instance = new BitmapPool(Math.min(Runtime.getRuntime().maxMemory() / 16, 24L * 1024 * 1024));
+        }
+        return instance;
+    }
+
+    /**
+     * A pooled bitmap with room for byteCount bytes, to pass as inBitmap (the decoder reconfigures it),
+     * or null. Its pixels are stale.
+     */
+    public synchronized Bitmap getReusable(long byteCount) {
+        Bitmap found = take(byteCount);
+        if (found != null) hits++; else misses++;
+        return found;
+    }
+
+    /**
+     * A cleared bitmap of exactly width x height, pooled if one fits, new otherwise
+     */
+    public Bitmap getOrCreate(int width, int height, Bitmap.Config config) {
+        long byteCount = (long) width * height * bytesPerPixel(config);
+        Bitmap found;
+        synchronized (this) {
+            found = take(byteCount);
+            if (found != null) hits++; else misses++;
+        }
+        if (found != null) {
+            try {
+                found.reconfigure(width, height, config);
+                found.eraseColor(0);
+                return found;
+            } catch (IllegalArgumentException e) {
+                found.recycle();
+            }
+        }
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Hands a bitmap back; the caller must not touch it afterwards. Bitmaps that can't be
+     * reused (immutable, hardware) or don't fit are recycled.
+     */
+    public void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return;
+        boolean hardware = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bitmap.getConfig() == Bitmap.Config.HARDWARE;
+        long size = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || hardware || size > maxBytes / 2) {
+            bitmap.recycle();
+            return;
+        }
+        synchronized (this) {
+            bitmaps.addLast(bitmap);
+            currentBytes += size;
+            while (currentBytes > maxBytes && !bitmaps.isEmpty()) {
+                Bitmap oldest = bitmaps.removeFirst();
+                currentBytes -= oldest.getAllocationByteCount();
+                oldest.recycle();
+                evictions++;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        for (Bitmap bitmap : bitmaps) bitmap.recycle();
+        bitmaps.clear();
+        currentBytes = 0;
+    }
+
+    public synchronized String stats() {
+        return "bitmapPool: " + bitmaps.size() + " bitmaps, " + currentBytes / 1024 + "/" + maxBytes / 1024
+                + " KiB, hits=" + hits + " misses=" + misses + " evictions=" + evictions;
+    }
+
+    // Smallest pooled bitmap that is big enough but not wastefully big; must hold the lock
+    private Bitmap take(long byteCount) {
+        Bitmap best = null;
+        for (Bitmap bitmap : bitmaps) {
+            long size = bitmap.getAllocationByteCount();
+            if (size < byteCount || size > byteCount * MAX_OVERSIZE) continue;
+            if (best == null || size < best.getAllocationByteCount()) best = bitmap;
+        }
+        if (best == null) return null;
+        Iterator<Bitmap> it = bitmaps.iterator();
+        while (it.hasNext()) {
+            if (it.next() == best) {
+                it.remove();
+                break;
+            }
+        }
+        currentBytes -= best.getAllocationByteCount();
+        if (best.isRecycled()) {
+            Log.w(TAG, "Recycled bitmap in the pool, someone used it after put()");
+            return null;
+        }
+        return best;
+    }
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) return 2;
+        if (config == Bitmap.Config.ALPHA_8) return 1;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && config == Bitmap.Config.RGBA_F16) return 8;
+        return 4;
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.chattingapp.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 of a stream, read through a small buffer (the content is never held in memory),
+ * so media can be stored and looked up by what it contains instead of a random name.
+ */
+public class ContentHash {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String hex;
+    private final long length;
+
+    private ContentHash(String hex, long length) {
+        this.hex = hex;
+        this.length = length;
+    }
+
+    /**
+     * Lowercase hex, safe to use as a storage object name
+     */
+    public String getHex() { return hex; }
+
+    /**
+     * Bytes read, the actual size of the content
+     */
+    public long getLength() { return length; }
+
+    /**
+     * Reads in to the end (the caller closes it)
+     */
+    public static ContentHash of(InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android version has SHA-256
+            throw new IllegalStateException(e);
+        }
+        DigestInputStream digestIn = new DigestInputStream(in, digest);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long length = 0;
+        int n;
+        while ((n = digestIn.read(buffer)) != -1) length += n;
+        return new ContentHash(toHex(digest.digest()), length);
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
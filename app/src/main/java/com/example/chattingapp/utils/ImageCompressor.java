@@ -1,60 +1,303 @@
 package com.example.chattingapp.utils;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
 import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 
+/**
+ * Encodes bitmaps to fit a byte budget.
+ * Instead of stepping the quality down one full encode at a time, it estimates up front how far
+ * the image has to shrink (from one encode of a small preview), then binary-searches the quality
+ * for the largest output that fits. Encodes go into reused buffers, whose size is checked without
+ * copying. WebP is used where the target allows it, otherwise JPEG (transparency flattened onto white).
+ */
 public class ImageCompressor {
-    
+
+    private static final String TAG = "ImageCompressor";
+
     private static final int MAX_SIZE_BYTES = 4 * 1024 * 1024; // 4MB
-    
+    // compressToMaxSize has no size limit of its own, but nothing bigger fits in 4MB anyway
+    private static final int MAX_DECODE_DIMENSION = 4096;
+
+    // Long side of the preview used to estimate bytes per pixel
+    private static final int PROBE_SIZE = 384;
+    // Quality the preview is encoded at, middle of the search range
+    private static final int PROBE_QUALITY = 75;
+    // Stop searching once the result uses this much of the budget
+    private static final float GOOD_ENOUGH = 0.9f;
+    // Rescales allowed when even the lowest quality doesn't fit
+    private static final int MAX_RESCALES = 3;
+
+    private static final Paint FILTER_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
     /**
-     * Compresses an image to be under 4MB
+     * Byte budget and limits for one use of an image
+     */
+    public static final class Target {
+        /** Photos sent in chat */
+        public static final Target CHAT_IMAGE = new Target(1536 * 1024, 2560, 55, 92, true);
+        /** Previews shown in the list before the full image loads */
+        public static final Target THUMBNAIL = new Target(48 * 1024, 320, 40, 80, true);
+        /** Profile pictures */
+        public static final Target AVATAR = new Target(160 * 1024, 512, 50, 88, true);
+
+        final int maxBytes;
+        final int maxDimension;
+        final int minQuality;
+        final int maxQuality;
+        final boolean allowWebp;
+
+        public Target(int maxBytes, int maxDimension, int minQuality, int maxQuality, boolean allowWebp) {
+            this.maxBytes = maxBytes;
+            this.maxDimension = maxDimension;
+            this.minQuality = minQuality;
+            this.maxQuality = maxQuality;
+            this.allowWebp = allowWebp;
+        }
+
+        public int getMaxBytes() { return maxBytes; }
+        public int getMaxDimension() { return maxDimension; }
+    }
+
+    /**
+     * Encoded image. The bytes stay in the encoder's buffer until copied or written out.
+     */
+    public static final class Encoded {
+        private final ReusableOutputStream out;
+        private final Bitmap.CompressFormat format;
+        private final int quality;
+        private final int width;
+        private final int height;
+        private final int encodes;
+        private final long elapsedMs;
+
+        private Encoded(ReusableOutputStream out, Bitmap.CompressFormat format, int quality, int width, int height,
+                        int encodes, long elapsedMs) {
+            this.out = out;
+            this.format = format;
+            this.quality = quality;
+            this.width = width;
+            this.height = height;
+            this.encodes = encodes;
+            this.elapsedMs = elapsedMs;
+        }
+
+        public int size() { return out.size(); }
+        public int getQuality() { return quality; }
+        public int getWidth() { return width; }
+        public int getHeight() { return height; }
+        public int getEncodeCount() { return encodes; }
+        public long getElapsedMs() { return elapsedMs; }
+
+        public boolean isWebp() {
+            return format != Bitmap.CompressFormat.JPEG && format != Bitmap.CompressFormat.PNG;
+        }
+
+        public String getMimeType() {
+            return isWebp() ? "image/webp" : "image/jpeg";
+        }
+
+        public String getExtension() {
+            return isWebp() ? "webp" : "jpg";
+        }
+
+        public void writeTo(OutputStream target) throws IOException {
+            out.writeTo(target);
+        }
+
+        public byte[] toByteArray() {
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * reset() keeps the grown array and size() reads the count, so a search step allocates nothing
+     */
+    private static final class ReusableOutputStream extends ByteArrayOutputStream {
+        ReusableOutputStream(int capacity) {
+            super(capacity);
+        }
+    }
+
+    /**
+     * Encodes bitmap (not modified or recycled) to fit target. Returns null if it can't be encoded.
+     * Slow, call off the main thread.
+     */
+    public static Encoded encode(Bitmap bitmap, Target target) {
+        if (!target.allowWebp && bitmap.hasAlpha()) {
+            Bitmap flat = flattened(bitmap);
+            try {
+                return encode(flat, target);
+            } finally {
+                BitmapPool.getInstance().put(flat);
+            }
+        }
+        long startedAt = SystemClock.elapsedRealtime();
+        Bitmap.CompressFormat format = formatFor(target);
+
+        float scale = Math.min(1f, (float) target.maxDimension / Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        scale *= estimateScale(bitmap, scale, format, target);
+
+        // One scratch buffer for the search, one for the best result so far; swapped, never reallocated
+        ReusableOutputStream scratch = new ReusableOutputStream(target.maxBytes + target.maxBytes / 4);
+        ReusableOutputStream best = new ReusableOutputStream(target.maxBytes + target.maxBytes / 4);
+        int encodes = 0;
+
+        for (int attempt = 0; attempt <= MAX_RESCALES; attempt++) {
+            Bitmap source = scaled(bitmap, scale);
+            if (source == null) return null;
+            try {
+                int lo = target.minQuality;
+                int hi = target.maxQuality;
+                int bestQuality = -1;
+                int smallest = Integer.MAX_VALUE;
+                // Try the top first, most images that already fit stop here
+                int quality = hi;
+                while (lo <= hi) {
+                    scratch.reset();
+                    if (!source.compress(format, quality, scratch)) return null;
+                    encodes++;
+                    int size = scratch.size();
+                    smallest = Math.min(smallest, size);
+                    if (size <= target.maxBytes) {
+                        bestQuality = quality;
+                        ReusableOutputStream swap = best;
+                        best = scratch;
+                        scratch = swap;
+                        if (size >= target.maxBytes * GOOD_ENOUGH) break;
+                        lo = quality + 1;
+                    } else {
+                        hi = quality - 1;
+                    }
+                    quality = (lo + hi) >>> 1;
+                }
+
+                if (bestQuality >= 0) {
+                    long elapsed = SystemClock.elapsedRealtime() - startedAt;
+                    Log.d(TAG, "Encoded " + source.getWidth() + "x" + source.getHeight() + " q" + bestQuality
+                            + " " + format + ": " + best.size() + "/" + target.maxBytes + " bytes, "
+                            + encodes + " encodes, " + elapsed + "ms");
+                    return new Encoded(best, format, bestQuality, source.getWidth(), source.getHeight(), encodes, elapsed);
+                }
+
+                // Even the lowest quality is too big: shrink by the overshoot (bytes go with the pixel count)
+                scale *= (float) Math.sqrt((double) target.maxBytes / smallest) * 0.9f;
+            } finally {
+                if (source != bitmap) BitmapPool.getInstance().put(source);
+            }
+        }
+        Log.w(TAG, "Could not fit " + bitmap.getWidth() + "x" + bitmap.getHeight() + " into " + target.maxBytes + " bytes");
+        return null;
+    }
+
+    /**
+     * Extra scale needed so the middle of the quality range lands near the budget, from the
+     * bytes per pixel of a small preview. Small previews compress a little worse than the full
+     * image, so this errs on the small side, and the search then picks the quality.
+     */
+    private static float estimateScale(Bitmap bitmap, float baseScale, Bitmap.CompressFormat format, Target target) {
+        int width = Math.max(1, Math.round(bitmap.getWidth() * baseScale));
+        int height = Math.max(1, Math.round(bitmap.getHeight() * baseScale));
+        float probeScale = Math.min(1f, (float) PROBE_SIZE / Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        Bitmap probe = scaled(bitmap, probeScale);
+        if (probe == null) return 1f;
+        try {
+            ReusableOutputStream out = new ReusableOutputStream(64 * 1024);
+            if (!probe.compress(format, PROBE_QUALITY, out)) return 1f;
+            double bytesPerPixel = (double) out.size() / ((long) probe.getWidth() * probe.getHeight());
+            double predicted = bytesPerPixel * width * height;
+            if (predicted <= target.maxBytes) return 1f;
+            return (float) Math.sqrt(target.maxBytes / predicted);
+        } finally {
+            if (probe != bitmap) BitmapPool.getInstance().put(probe);
+        }
+    }
+
+    /**
+     * Scaled copy drawn into a pooled bitmap, the caller puts it back when it differs from bitmap
+     */
+    private static Bitmap scaled(Bitmap bitmap, float scale) {
+        if (scale >= 0.999f) return bitmap;
+        int width = Math.max(1, Math.round(bitmap.getWidth() * scale));
+        int height = Math.max(1, Math.round(bitmap.getHeight() * scale));
+        Bitmap.Config config = bitmap.getConfig();
+        if (config == null || (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && config == Bitmap.Config.HARDWARE)) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+        Bitmap out = BitmapPool.getInstance().getOrCreate(width, height, config);
+        out.setHasAlpha(bitmap.hasAlpha());
+        Canvas canvas = new Canvas(out);
+        canvas.scale((float) width / bitmap.getWidth(), (float) height / bitmap.getHeight());
+        canvas.drawBitmap(bitmap, 0, 0, FILTER_PAINT);
+        return out;
+    }
+
+    /**
+     * Opaque pooled copy of bitmap drawn on white, JPEG would turn its transparent pixels black
+     */
+    private static Bitmap flattened(Bitmap bitmap) {
+        Bitmap out = BitmapPool.getInstance().getOrCreate(bitmap.getWidth(), bitmap.getHeight(), Bitmap.Config.ARGB_8888);
+        out.eraseColor(Color.WHITE);
+        new Canvas(out).drawBitmap(bitmap, 0, 0, null);
+        out.setHasAlpha(false);
+        return out;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat formatFor(Target target) {
+        // Transparent images were flattened before getting here when WebP isn't allowed
+        if (!target.allowWebp) return Bitmap.CompressFormat.JPEG;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) return Bitmap.CompressFormat.WEBP_LOSSY;
+        // Before R, WEBP below quality 100 is lossy
+        return Bitmap.CompressFormat.WEBP;
+    }
+
+    /**
+     * Decodes source no bigger than target needs, within the default decode budget, and encodes it
+     * to fit target. Returns null if it isn't an image or can't be encoded. Slow, call off the main thread.
+     */
+    public static Encoded compress(BitmapDecoder.Source source, Target target) throws IOException {
+        Bitmap bitmap = BitmapDecoder.decode(source, target.maxDimension, BitmapDecoder.defaultBudget(),
+                BitmapDecoder.PURPOSE_ENCODE);
+        if (bitmap == null) return null;
+        try {
+            return encode(bitmap, target);
+        } finally {
+            BitmapPool.getInstance().put(bitmap);
+        }
+    }
+
+    /**
+     * Compresses an image to be under 4MB, always as JPEG
      * @param imagePath Path to the original image
      * @return Compressed image as byte array
      */
     public static byte[] compressToMaxSize(String imagePath) {
-        Bitmap bitmap = BitmapFactory.decodeFile(imagePath);
-        if (bitmap == null) return null;
-        
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        int quality = 100;
-        
-        // Start with PNG, if too large, switch to JPEG with decreasing quality
-        bitmap.compress(Bitmap.CompressFormat.JPEG, quality, baos);
-        
-        while (baos.toByteArray().length > MAX_SIZE_BYTES && quality > 10) {
-            baos.reset();
-            quality -= 10;
-            bitmap.compress(Bitmap.CompressFormat.JPEG, quality, baos);
-        }
-        
-        // If still too large, scale down the image
-        if (baos.toByteArray().length > MAX_SIZE_BYTES) {
-            float scale = (float) Math.sqrt((double) MAX_SIZE_BYTES / baos.toByteArray().length);
-            int newWidth = (int) (bitmap.getWidth() * scale);
-            int newHeight = (int) (bitmap.getHeight() * scale);
-            
-            Bitmap scaledBitmap = Bitmap.createScaledBitmap(bitmap, newWidth, newHeight, true);
-            baos.reset();
-            scaledBitmap.compress(Bitmap.CompressFormat.JPEG, 80, baos);
-            scaledBitmap.recycle();
+        try {
+            Encoded encoded = compress(BitmapDecoder.fromFile(imagePath),
+                    new Target(MAX_SIZE_BYTES, MAX_DECODE_DIMENSION, 10, 100, false));
+            return encoded != null ? encoded.toByteArray() : null;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't read " + imagePath + ": " + e.getMessage());
+            return null;
         }
-        
-        bitmap.recycle();
-        return baos.toByteArray();
     }
-    
+
     /**
      * Checks if file is valid image type (JPEG/PNG only)
      */
     public static boolean isValidImageType(String mimeType) {
         return "image/jpeg".equals(mimeType) || "image/png".equals(mimeType);
     }
-    
+
     /**
      * Checks if file is a video (not allowed)
      */
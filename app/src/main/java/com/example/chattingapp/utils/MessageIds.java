@@ -0,0 +1,37 @@
+package com.example.chattingapp.utils;
+
+import java.security.SecureRandom;
+import java.util.UUID;
+
+/**
+ * Client-side message ids.
+ * Ids are time-ordered UUIDs (version 7 layout): 48 bits of epoch millis, then a counter and
+ * random bits. Messages inserted in one batch share the same created_at on the server, so the
+ * (created_at, id) order only matches the send order if the ids themselves sort by creation.
+ */
+public class MessageIds {
+
+    private static final SecureRandom random = new SecureRandom();
+    private static long lastMillis = -1;
+    private static int counter = 0;
+
+    public static synchronized String next() {
+        long millis = System.currentTimeMillis();
+        if (millis <= lastMillis) {
+            // Same (or earlier) millisecond: keep ordering with the 12-bit counter
+            millis = lastMillis;
+            counter++;
+            if (counter > 0xFFF) {
+                millis++;
+                counter = 0;
+            }
+        } else {
+            counter = 0;
+        }
+        lastMillis = millis;
+
+        long msb = (millis << 16) | (0x7L << 12) | counter;
+        long lsb = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L; // IETF variant
+        return new UUID(msb, lsb).toString();
+    }
+}
@@ -7,12 +7,15 @@ import android.net.NetworkCapabilities;
 import android.net.NetworkRequest;
 import androidx.annotation.NonNull;
 
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 public class NetworkHelper {
     
     private static NetworkHelper instance;
     private ConnectivityManager connectivityManager;
     private boolean isConnected = true;
-    private NetworkCallback networkCallback;
+    private final List<NetworkCallback> networkCallbacks = new CopyOnWriteArrayList<>();
     
     public interface NetworkCallback {
         void onConnectionChanged(boolean isConnected);
@@ -32,8 +35,18 @@ public class NetworkHelper {
         registerNetworkCallback();
     }
     
-    public void setNetworkCallback(NetworkCallback callback) {
-        this.networkCallback = callback;
+    public void addNetworkCallback(NetworkCallback callback) {
+        if (!networkCallbacks.contains(callback)) networkCallbacks.add(callback);
+    }
+
+    public void removeNetworkCallback(NetworkCallback callback) {
+        networkCallbacks.remove(callback);
+    }
+
+    private void notifyConnectionChanged(boolean connected) {
+        for (NetworkCallback callback : networkCallbacks) {
+            callback.onConnectionChanged(connected);
+        }
     }
     
     private void registerNetworkCallback() {
@@ -45,17 +58,13 @@ public class NetworkHelper {
             @Override
             public void onAvailable(@NonNull Network network) {
                 isConnected = true;
-                if (networkCallback != null) {
-                    networkCallback.onConnectionChanged(true);
-                }
+                notifyConnectionChanged(true);
             }
             
             @Override
             public void onLost(@NonNull Network network) {
                 isConnected = false;
-                if (networkCallback != null) {
-                    networkCallback.onConnectionChanged(false);
-                }
+                notifyConnectionChanged(false);
             }
         });
     }
@@ -0,0 +1,118 @@
+package com.example.chattingapp.utils;
+
+import android.view.Choreographer;
+import android.widget.SeekBar;
+import android.widget.TextView;
+
+/**
+ * Drives the seek bar and "mm:ss / mm:ss" timer of the row showing the current clip.
+ * Runs on Choreographer frames, only while the engine is playing and the row is attached,
+ * and formats into a reused char buffer so a tick allocates nothing.
+ * There is at most one ticker per instance. Main thread only.
+ */
+public class PlaybackProgressTicker implements Choreographer.FrameCallback {
+
+    private final AudioPlaybackEngine engine;
+    private final char[] timeBuffer = new char[13]; // "mm:ss / mm:ss"
+
+    private SeekBar seekBar;
+    private TextView timer;
+    private boolean running = false;
+    private boolean seeking = false;
+    private int lastShownSecond = -1;
+    private int lastShownTotal = -1;
+
+    public PlaybackProgressTicker(AudioPlaybackEngine engine) {
+        this.engine = engine;
+        timeBuffer[5] = ' ';
+        timeBuffer[6] = '/';
+        timeBuffer[7] = ' ';
+    }
+
+    /**
+     * Points the ticker at the row bound to the current clip, null views detach it
+     */
+    public void attach(SeekBar seekBar, TextView timer) {
+        this.seekBar = seekBar;
+        this.timer = timer;
+        lastShownSecond = -1;
+        lastShownTotal = -1;
+        update();
+    }
+
+    public void detach() {
+        seekBar = null;
+        timer = null;
+        stop();
+    }
+
+    public void setSeeking(boolean seeking) {
+        this.seeking = seeking;
+    }
+
+    /**
+     * Starts ticking if there is something to tick for, calling it twice is a no-op
+     */
+    public void update() {
+        boolean shouldRun = engine.isPlaying() && seekBar != null && seekBar.isAttachedToWindow();
+        if (shouldRun && !running) {
+            running = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        } else if (!shouldRun) {
+            stop();
+        }
+    }
+
+    public void stop() {
+        if (running) {
+            running = false;
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!running) return;
+        if (!engine.isPlaying() || seekBar == null || !seekBar.isAttachedToWindow()) {
+            // Row scrolled away or playback stopped, the next bind/state change restarts us
+            running = false;
+            return;
+        }
+
+        if (!seeking) {
+            int position = engine.getCurrentPosition();
+            int total = engine.getDuration();
+            seekBar.setProgress(position);
+            if (timer != null) {
+                showTime(timer, position, total);
+            }
+        }
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * Writes "mm:ss / mm:ss" into the timer, skipping the update if the seconds didn't change
+     */
+    public void showTime(TextView target, int currentMs, int totalMs) {
+        int currentSec = currentMs / 1000;
+        int totalSec = totalMs / 1000;
+        if (target == timer && currentSec == lastShownSecond && totalSec == lastShownTotal) return;
+        if (target == timer) {
+            lastShownSecond = currentSec;
+            lastShownTotal = totalSec;
+        }
+        writeTime(currentSec, 0);
+        writeTime(totalSec, 8);
+        target.setText(timeBuffer, 0, timeBuffer.length);
+    }
+
+    private void writeTime(int totalSeconds, int offset) {
+        int minutes = Math.min(totalSeconds / 60, 99);
+        int seconds = totalSeconds % 60;
+        timeBuffer[offset] = (char) ('0' + minutes / 10);
+        timeBuffer[offset + 1] = (char) ('0' + minutes % 10);
+        timeBuffer[offset + 2] = ':';
+        timeBuffer[offset + 3] = (char) ('0' + seconds / 10);
+        timeBuffer[offset + 4] = (char) ('0' + seconds % 10);
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.chattingapp.utils;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Dedupes strings that repeat across many messages (sender ids, names, avatar urls) so the
+ * cached history holds one copy of each instead of one per message.
+ * It's a fixed-size, hash-indexed table: a lookup is one slot read, there are no locks, and
+ * memory is bounded by the slot count. When two strings land in the same slot the newer one
+ * wins, so the worst case is an extra copy, never a wrong value. Safe to call from any thread.
+ */
+public final class StringInterner {
+
+    // A room has a few hundred distinct senders, this keeps collisions rare
+    private static final int SLOTS = 4096;
+
+    private static final StringInterner shared = new StringInterner(SLOTS);
+
+    private final AtomicReferenceArray<String> table;
+    private final int mask;
+
+    /**
+     * @param slots rounded up to a power of two
+     */
+    public StringInterner(int slots) {
+        int size = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+        table = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+
+    public static StringInterner getInstance() {
+        return shared;
+    }
+
+    /**
+     * Returns an equal string already seen, or s itself (which is remembered)
+     */
+    public String intern(String s) {
+        if (s == null) return null;
+        int h = s.hashCode();
+        int slot = (h ^ (h >>> 16)) & mask;
+        String existing = table.get(slot);
+        if (existing != null && existing.equals(s)) return existing;
+        // Lazy write is enough: a racing reader just misses and keeps its own copy
+        table.lazySet(slot, s);
+        return s;
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.chattingapp.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hashed timer wheel: one Handler tick drives any number of per-key deadlines, instead of
+ * one posted Runnable per key. Deadlines are rounded up to the tick, so a key expires up to one
+ * tick late. Rescheduling a key is a map write; the stale bucket entry is dropped when its tick comes.
+ * Deadlines further out than the wheel span are clamped to it. Ticks only run while something is
+ * scheduled. Main thread only.
+ */
+public class TimerWheel<K> {
+
+    public interface ExpiryListener<K> {
+        /**
+         * Keys whose deadline passed during one tick, in no particular order
+         */
+        void onExpired(List<K> keys);
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final long tickMs;
+    private final int mask;
+    private final List<K>[] buckets;
+    // Key -> absolute tick it expires on; the source of truth, buckets only point at candidates
+    private final Map<K, Long> deadlines = new HashMap<>();
+    private final ExpiryListener<K> listener;
+
+    private long lastTick;
+    private boolean running = false;
+
+    /**
+     * @param slots rounded up to a power of two; tickMs * slots is the longest delay
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long tickMs, int slots, ExpiryListener<K> listener) {
+        this.tickMs = tickMs;
+        int size = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+        this.mask = size - 1;
+        this.buckets = new List[size];
+        for (int i = 0; i < size; i++) buckets[i] = new ArrayList<>();
+        this.listener = listener;
+    }
+
+    /**
+     * Expires key after delayMs, replacing any earlier deadline for it
+     */
+    public void schedule(K key, long delayMs) {
+        long now = currentTick();
+        if (!running) lastTick = now;
+        long ticks = Math.max(1, Math.min(mask, (delayMs + tickMs - 1) / tickMs));
+        long deadline = now + ticks;
+        Long previous = deadlines.put(key, deadline);
+        // An entry already in the same slot covers the new deadline, the tick checks the map
+        if (previous == null || (previous & mask) != (deadline & mask)) {
+            buckets[(int) (deadline & mask)].add(key);
+        }
+        start();
+    }
+
+    public void cancel(K key) {
+        deadlines.remove(key);
+        if (deadlines.isEmpty()) clear();
+    }
+
+    public boolean contains(K key) {
+        return deadlines.containsKey(key);
+    }
+
+    public int size() {
+        return deadlines.size();
+    }
+
+    public void clear() {
+        deadlines.clear();
+        for (List<K> bucket : buckets) bucket.clear();
+        stop();
+    }
+
+    private long currentTick() {
+        return SystemClock.uptimeMillis() / tickMs;
+    }
+
+    private void start() {
+        if (running) return;
+        running = true;
+        handler.postDelayed(tick, tickMs);
+    }
+
+    private void stop() {
+        if (!running) return;
+        running = false;
+        handler.removeCallbacks(tick);
+    }
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) return;
+            List<K> expired = null;
+            long now = currentTick();
+            // Catch up on ticks missed while the main thread was busy, at most one full turn
+            long from = Math.max(lastTick + 1, now - mask);
+            for (long t = from; t <= now; t++) {
+                List<K> bucket = buckets[(int) (t & mask)];
+                for (int i = bucket.size() - 1; i >= 0; i--) {
+                    K key = bucket.get(i);
+                    Long deadline = deadlines.get(key);
+                    // A later turn of this slot: keep. Rescheduled to another slot: stale, drop
+                    if (deadline != null && deadline > t && (deadline & mask) == (t & mask)) continue;
+                    bucket.remove(i);
+                    if (deadline == null || deadline > t) continue; // cancelled, expired or rescheduled
+                    deadlines.remove(key);
+                    if (expired == null) expired = new ArrayList<>();
+                    expired.add(key);
+                }
+            }
+            lastTick = now;
+
+            if (deadlines.isEmpty()) {
+                // Only entries of cancelled keys can be left
+                for (List<K> bucket : buckets) bucket.clear();
+                running = false;
+            } else {
+                handler.postDelayed(this, tickMs);
+            }
+            if (expired != null) listener.onExpired(expired);
+        }
+    };
+}
@@ -0,0 +1,115 @@
+package com.example.chattingapp.utils;
+
+/**
+ * Parser for the ISO-8601 timestamps Postgres/PostgREST emit for timestamptz columns,
+ * e.g. "2024-05-01T12:34:56.789012+00:00", "2024-05-01 12:34:56Z" or "2024-05-01T12:34:56.5+05:30".
+ * Fraction precision is variable (0-9 digits, anything past milliseconds is ignored) and the
+ * offset may be Z, +hh, +hhmm or +hh:mm. Missing offsets are taken as UTC.
+ * Stateless and allocation-free, so it is safe to call from any thread.
+ */
+public final class TimestampParser {
+
+    public static final long INVALID = Long.MIN_VALUE;
+
+    private TimestampParser() {}
+
+    /**
+     * Returns epoch millis, or {@link #INVALID} if s isn't a timestamp in the supported format
+     */
+    public static long parseEpochMillis(CharSequence s) {
+        if (s == null) return INVALID;
+        int len = s.length();
+        // yyyy-MM-ddTHH:mm:ss is the minimum
+        if (len < 19) return INVALID;
+
+        int year = digits(s, 0, 4);
+        int month = digits(s, 5, 2);
+        int day = digits(s, 8, 2);
+        int hour = digits(s, 11, 2);
+        int minute = digits(s, 14, 2);
+        int second = digits(s, 17, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 60) {
+            return INVALID;
+        }
+        if (s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(13) != ':' || s.charAt(16) != ':') {
+            return INVALID;
+        }
+        char sep = s.charAt(10);
+        if (sep != 'T' && sep != ' ' && sep != 't') return INVALID;
+
+        int pos = 19;
+        int millis = 0;
+        if (pos < len && s.charAt(pos) == '.') {
+            pos++;
+            int start = pos;
+            int scale = 100;
+            while (pos < len) {
+                char c = s.charAt(pos);
+                if (c < '0' || c > '9') break;
+                if (scale > 0) {
+                    millis += (c - '0') * scale;
+                    scale /= 10;
+                }
+                pos++;
+            }
+            if (pos == start) return INVALID;
+        }
+
+        int offsetSeconds = 0;
+        if (pos < len) {
+            char c = s.charAt(pos);
+            if (c == 'Z' || c == 'z') {
+                pos++;
+            } else if (c == '+' || c == '-') {
+                int sign = c == '-' ? -1 : 1;
+                pos++;
+                int offHour = digits(s, pos, 2);
+                if (offHour < 0) return INVALID;
+                pos += 2;
+                int offMinute = 0;
+                if (pos < len && s.charAt(pos) == ':') pos++;
+                if (pos < len) {
+                    offMinute = digits(s, pos, 2);
+                    if (offMinute < 0) return INVALID;
+                    pos += 2;
+                }
+                offsetSeconds = sign * (offHour * 3600 + offMinute * 60);
+            } else {
+                return INVALID;
+            }
+        }
+        if (pos != len) return INVALID;
+
+        long days = daysFromCivil(year, month, day);
+        long seconds = days * 86400L + hour * 3600L + minute * 60L + second - offsetSeconds;
+        return seconds * 1000L + millis;
+    }
+
+    /**
+     * Parses count decimal digits at offset, -1 if any of them isn't a digit or is out of range
+     */
+    private static int digits(CharSequence s, int offset, int count) {
+        if (offset + count > s.length()) return -1;
+        int value = 0;
+        for (int i = offset; i < offset + count; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * Days since 1970-01-01 for a proleptic Gregorian date (Howard Hinnant's algorithm)
+     */
+    private static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yoe = y - era * 400;
+        int mp = (month + 9) % 12;
+        int doy = (153 * mp + 2) / 5 + day - 1;
+        int doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097L + doe - 719468;
+    }
+}